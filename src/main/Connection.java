@@ -2,49 +2,142 @@ package com.robaho.jnatsd;
 
 import com.robaho.jnatsd.util.*;
 
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
-class Connection {
+class Connection implements Parser.Handler {
+    private static final int OUTPUT_BUFFER_SIZE = 64*1024;
+
     private InputStream r;
     private OutputStream w;
     private final Server server;
     private Socket socket;
     private final String remote;
     private volatile boolean closed;
+    private volatile boolean abandoned; // the output is discarded rather than flushed on close
     private int clientID;
     private ConnectionOptions options = new ConnectionOptions();
     private boolean isSSL;
-    private CharSeq[] args = new CharSeq[4];
+    private TLSChannel tls; // null until upgraded
+    private final Parser parser;
     private Thread reader;
+    /** writes the output of a blocking socket, so the flusher never waits on it. Null with the event loop */
+    private final Thread writer;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    /** with the virtual transport, the writer also does the flusher's work for this connection */
+    private final boolean selfFlushing;
+    private final EventLoop loop; // null when using a reader thread
+    private SelectionKey key;
+    private ByteBuffer in; // read buffer for the event loop
     private long nMsgsRead;
     private long nMsgsWrite;
 
     private final long connectTime;
     private volatile long lastWriteNanos;
+    private volatile long firstWriteNanos; // of the unflushed output
+    private volatile FlushPolicy flushPolicy;
+    private boolean flushDue; // the flusher has been woken for the unflushed output
+    private long reportedWrites, reportedBytes;
+    private int pendingBytes; // written but not flushed
+    private int pendingMsgs; // written but not yet accepted by the socket, excluding a batch being written
+    private int batchMsgs; // in the batch being written to a blocking socket
+    private volatile long writeStartNanos; // when the socket first did not accept all of the output, 0 if it has
+    private boolean dropping; // a slow consumer, dropping messages until the output is written
     private int pingCount=0;
+    /** run once, on the client's CONNECT or on close, whichever is first */
+    private final AtomicReference<Runnable> established = new AtomicReference<>();
+    /** guards output. A lock rather than synchronized so blocked virtual threads don't pin their carrier */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** held while writing to a blocking socket, without the output lock */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final int gatherThreshold;
+    private final long maxPending;
+    private final int maxPendingMsgs;
+    private final long writeDeadline;
+    private final Server.SlowConsumerPolicy slowConsumerPolicy;
+
+    /** set while queued with the connection's flusher */
+    final AtomicBoolean flushQueued = new AtomicBoolean();
+    /** messages to write, if delivery is queued. Read holding the output lock, so it has a single reader at a time */
+    private final RingBuffer<Delivery> deliveries;
+    /** set while queued with the flusher to write the queued messages */
+    final AtomicBoolean deliveryQueued = new AtomicBoolean();
+
+    /**
+     * a message queued for delivery, retained until written
+     */
+    static final class Delivery {
+        final SubscriptionMatch.Recipient recipient;
+        final InMessage msg;
 
-    public Connection(Server server,Socket s) throws IOException {
+        Delivery(SubscriptionMatch.Recipient recipient, InMessage msg) {
+            this.recipient = recipient;
+            this.msg = msg;
+        }
+    }
+
+    /** this connection's subscriptions by ssid, maintained by the server */
+    final Map<Integer,Subscription> subscriptions = new ConcurrentHashMap<>();
+    /** set by the server, holding its subscription lock, once the subscriptions are removed on close */
+    boolean unsubscribed;
+    /** consecutive SUBs from a parse pass, not yet added. Only used by the thread parsing the input */
+    private final Map<Integer,Subscription> pendingSubs = new LinkedHashMap<>();
+
+    /**
+     * @param loop the event loop to process the connection, or null to use a dedicated reader thread.
+     *             The socket's channel must be non-blocking if using an event loop.
+     */
+    public Connection(Server server,Socket s,EventLoop loop) throws IOException {
         this.socket=s;
         this.server=server;
+        this.loop=loop;
         this.connectTime = System.currentTimeMillis();
 
         clientID = server.getNextClientID();
 
         remote = s.getRemoteSocketAddress().toString();
 
-        socket.setTcpNoDelay(true);
+        socket.setTcpNoDelay(server.isTcpNoDelay());
+        if(server.getSendBufferSize()>0)
+            socket.setSendBufferSize(server.getSendBufferSize());
 
-        r = new UnsyncBufferedInputStream(s.getInputStream(),64*1024);
-        w = new ChannelOutputStream(s.getChannel(),64*1024);
+        if(loop==null) {
+            r = s.getInputStream();
+            writer = server.newConnectionThread(new ConnectionWriter(),"Writer("+remote+")");
+            selfFlushing = server.isVirtual();
+        } else {
+            writer = null;
+            selfFlushing = false;
+            in = ByteBuffer.allocate(64*1024);
+        }
+        maxPending = server.getMaxPending();
+        maxPendingMsgs = server.getMaxPendingMsgs();
+        writeDeadline = TimeUnit.MILLISECONDS.toNanos(server.getWriteDeadline());
+        slowConsumerPolicy = server.getSlowConsumerPolicy();
+        deliveries = server.getDeliveryQueue()>0 ? new RingBuffer<>(server.getDeliveryQueue()) : null;
+        w = new ChannelOutputStream(s.getChannel(),OUTPUT_BUFFER_SIZE,maxPending);
+        parser = new Parser(this,server.getMaxMsgSize());
+        gatherThreshold = server.getGatherThreshold();
+        flushPolicy = FlushPolicy.parse(server.getFlushPolicy());
 
         w.write(server.getInfoAsJSON(this).getBytes());
         flush();
@@ -56,12 +149,27 @@ class Connection {
         }
     }
 
+    /**
+     * @param r run when the client sends CONNECT, or when the connection is closed before it does
+     */
+    void whenEstablished(Runnable r) {
+        established.set(r);
+    }
+
+    private void established() {
+        Runnable r = established.getAndSet(null);
+        if(r!=null)
+            r.run();
+    }
+
     void processConnection(){
-        reader = new Thread(new ConnectionReader(),"Reader("+socket.getRemoteSocketAddress()+")");
+        if(loop!=null) {
+            loop.register(this);
+            return;
+        }
+        reader = server.newConnectionThread(new ConnectionReader(),"Reader("+socket.getRemoteSocketAddress()+")");
         reader.start();
-
-//        writer = new Thread(new ConnectionWriter(),"Writer("+socket.getRemoteSocketAddress()+")");
-//        writer.start();
+        writer.start();
     }
 
     private class ConnectionReader implements Runnable {
@@ -81,75 +189,201 @@ class Connection {
         }
     }
 
+    /**
+     * writes the output of the blocking socket when the flusher finds it due. The write may wait on the
+     * socket indefinitely, for a slow consumer whose messages are dropped, which only holds up this thread.
+     *
+     * With the virtual transport there are no flushers, and the writer writes the queued messages and
+     * waits out the flush policy itself, so all of the connection's output is written on its own virtual
+     * thread rather than on a shared platform thread.
+     */
+    private class ConnectionWriter implements Runnable {
+        public void run() {
+            while(!closed) {
+                if(selfFlushing && deliveryQueued.get()) {
+                    // cleared before writing, so a message queued after the write wakes the writer again
+                    deliveryQueued.set(false);
+                    writeQueued();
+                }
+                if(selfFlushing && flushQueued.get()) {
+                    long delay = flushDelay(System.nanoTime());
+                    if(delay>0) {
+                        LockSupport.parkNanos(this,delay);
+                        continue;
+                    }
+                    flushQueued.set(false);
+                    flushPending();
+                }
+                if(!writeRequested.getAndSet(false)) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    flush();
+                } catch (IOException e) {
+                    if(!closed) {
+                        log(Level.WARNING,"unable to flush",e);
+                        server.closeConnection(Connection.this);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * read into the buffer and parse every complete command it holds before blocking again
+     */
     private void readMessages() throws IOException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[64*1024];
 
-        for (CharSeq line; (line = readLine(buffer,r)) != null; ) {
-            try {
-                processLine(line);
-            } catch(IOException e){
-                throw e;
-            } catch(Exception e){
-                sendError(e);
-                server.logger.log(Level.WARNING,"error processing connection",e);
-            }
+        for (int n; (n = r.read(buffer)) != -1; ) {
+            parse(buffer,0,n);
         }
+        throw new EOFException();
     }
-    private static final CharSeq PUB = new CharSeq("PUB");
-    private static final CharSeq PING = new CharSeq("PING");
-    private static final CharSeq SUB = new CharSeq("SUB");
-    private static final CharSeq UNSUB = new CharSeq("UNSUB");
-    private static final CharSeq CONNECT = new CharSeq("CONNECT");
-
-    private void processLine(CharSeq line) throws IOException {
-        int index=1;
-//        System.out.println("rec: " + line);
-        int nargs = line.split(args);
-        CharSeq cmd = args[0];
-        if (cmd.equalsIgnoreCase(PUB)) {
-            CharSeq subject = args[index++];
-            CharSeq reply = CharSeq.EMPTY;
-            if (nargs == 4) {
-                reply = args[index++];
-            }
-            int len = args[index].toInt();
-            byte[] msg = new byte[len];
-            readPayload(r,msg);
-            nMsgsRead++;
-            server.queueMessage(new InMessage(this,subject.dup(),reply.dup(),msg));
-        } else if (cmd.equalsIgnoreCase(PING)){
-            if(pingCount++==0 && System.currentTimeMillis()-connectTime>500) {
-                log(Level.WARNING,"too long to receive initial PING");
-            }
-            log(Level.FINE,"PING!");
-            sendPong();
-        } else if (cmd.equalsIgnoreCase(SUB)) {
-            CharSeq subject = args[index++];
-            CharSeq group = CharSeq.EMPTY;
-            if(nargs==4) { // we have a group
-                group = args[index++];
-            }
-            int ssid = args[index].toInt();
-            addSubscription(subject, group, ssid);
-        } else if(cmd.equalsIgnoreCase(UNSUB)){
-            int ssid = args[1].toInt();
-            removeSubscription(ssid);
-        } else if(cmd.equalsIgnoreCase(CONNECT)){
-            if(System.currentTimeMillis()-connectTime>500) {
-                log(Level.WARNING,"too long to receive CONNECT");
-            }
-            log(Level.FINE,"connection options: "+args[1].toString());
-            processConnectionOptions(args[1].toString());
+
+    /**
+     * parse the input, adding the SUBs it ends with once it is consumed
+     */
+    private void parse(byte[] buf, int off, int len) throws IOException {
+        try {
+            parser.parse(buf,off,len);
+        } finally {
+            addPendingSubscriptions();
+        }
+    }
+
+    /*
+     * event loop processing. Each read is parsed as it arrives, the parser retains any partial command.
+     */
+
+    SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    SelectionKey getSelectionKey() {
+        return key;
+    }
+
+    void setSelectionKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() throws IOException {
+        ByteChannel ch = tls!=null ? tls : socket.getChannel();
+        do {
+            if(ch.read(in)<0)
+                throw new EOFException();
+            parse(in.array(), 0, in.position());
+            in.clear();
+        } while(hasBufferedInput());
+    }
+
+    /**
+     * @return true if input was read from the socket but not yet parsed, so there may be nothing more
+     * for the selector to signal
+     */
+    boolean hasBufferedInput() {
+        return tls!=null && tls.hasBufferedInput();
+    }
+
+    /**
+     * flush pending output when the socket becomes writable
+     * @return true if all pending output was written
+     */
+    boolean onWritable() throws IOException {
+        lock.lock();
+        try {
+            boolean flushed = ((ChannelOutputStream)w).tryFlush();
+            recordWrites();
+            if(!flushed)
+                return false;
+            flushed();
+            drained();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean hasPendingOutput() {
+        lock.lock();
+        try {
+            return ((ChannelOutputStream)w).pending()>0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * protocol commands, dispatched by the parser
+     */
+
+    public void onPub(CharSeq subject, CharSeq reply, byte[] payload, int offset, int length, int hdrLength) {
+        addPendingSubscriptions();
+        nMsgsRead++;
+        InMessage m = InMessage.copyOf(this,subject,reply,payload,offset,length,hdrLength,server.now(),server.getBufferPool());
+        try {
+            server.queueMessage(m);
+        } finally {
+            m.release();
+        }
+    }
+
+    public void onSub(CharSeq subject, CharSeq group, int ssid) throws IOException {
+        addSubscription(subject, group, ssid);
+    }
+
+    public void onUnsub(int ssid, int max) throws IOException {
+        addPendingSubscriptions();
+        removeSubscription(ssid, max);
+    }
+
+    public void onPing() throws IOException {
+        addPendingSubscriptions();
+        if(pingCount++==0 && System.currentTimeMillis()-connectTime>500) {
+            log(Level.WARNING,"too long to receive initial PING");
+        }
+        log(Level.FINE,"PING!");
+        sendPong();
+    }
+
+    public void onPong() {
+        addPendingSubscriptions();
+    }
+
+    public void onConnect(CharSeq options) throws IOException {
+        addPendingSubscriptions();
+        established();
+        if(System.currentTimeMillis()-connectTime>500) {
+            log(Level.WARNING,"too long to receive CONNECT");
+        }
+        String json = options.toString();
+        log(Level.FINE,"connection options: "+json);
+        processConnectionOptions(json);
+    }
+
+    public void onError(Exception e) throws IOException {
+        addPendingSubscriptions();
+        if(e instanceof Parser.ProtocolException) {
+            log(Level.WARNING,"error: "+e.getMessage());
+            sendError(e.getMessage());
         } else {
-            log(Level.WARNING,"error: "+ line+", "+Arrays.toString(args));
-            sendError("Unknown Protocol Operation");
+            sendError(e);
+            server.logger.log(Level.WARNING,"error processing connection",e);
         }
     }
 
     private static final byte[] PONG = "PONG\r\n".getBytes();
-    private synchronized void sendPong() throws IOException {
-        log(Level.FINE,"Pong!");
-        w.write(PONG);
+    private void sendPong() throws IOException {
+        lock.lock();
+        try {
+            log(Level.FINE,"Pong!");
+            w.write(PONG);
+        } finally {
+            lock.unlock();
+        }
         flush();
     }
 
@@ -159,35 +393,61 @@ class Connection {
         JSON.load(json,opts);
         options = opts;
 
+        if(opts.flush_policy!=null) {
+            FlushPolicy policy = FlushPolicy.parse(opts.flush_policy);
+            lock.lock();
+            try {
+                flushPolicy = policy;
+            } finally {
+                lock.unlock();
+            }
+        }
+
         if(options.tls_required || server.isTLSRequired()){
+            if(loop!=null && !isSSL) {
+                // the client's handshake follows, which must not be parsed as commands, so the connection is closed
+                String err = "TLS must be required by the server with the nio transport";
+                sendError(err);
+                throw new IOException(err);
+            }
             upgradeToSSL();
         }
     }
 
-    private synchronized void upgradeToSSL() throws IOException {
-        if(isSSL)
-            return;
-
-//        System.out.println("upgrading socket to SSL");
-        SSLSocketFactory ssf =
-                (SSLSocketFactory)SSLSocketFactory.getDefault();
-
-//        printCiphers(ssf);
-
-        SSLSocket sslSocket =
-                (SSLSocket)ssf.
-                        createSocket(socket,
-                                socket.getInetAddress().getHostAddress(),
-                                socket.getPort(),
-                                false);
-        sslSocket.setUseClientMode(false);
-        sslSocket.startHandshake();
-        socket = sslSocket;
-
-        isSSL=true;
-
-        r = new BufferedInputStream(socket.getInputStream());
-        w = new BufferedOutputStream(socket.getOutputStream());
+    /**
+     * perform the TLS handshake, and continue with the socket's channel through an SSLEngine, keeping
+     * the direct buffered output. The handshake blocks, so with the event loop it is performed before
+     * the connection is registered, and the channel then returned to non-blocking.
+     */
+    private void upgradeToSSL() throws IOException {
+        lock.lock();
+        try {
+            if(isSSL)
+                return;
+
+            SocketChannel ch = socket.getChannel();
+            boolean blocking = ch.isBlocking();
+            if(!blocking)
+                ch.configureBlocking(true);
+            TLSChannel tls;
+            try {
+                tls = new TLSChannel(ch,SSLContext.getDefault());
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available",e);
+            }
+            tls.handshake();
+            if(!blocking)
+                ch.configureBlocking(false);
+            log(Level.FINE,"upgraded to "+tls.getProtocol());
+
+            isSSL=true;
+            this.tls=tls;
+            if(loop==null)
+                r = Channels.newInputStream(tls);
+            w = new ChannelOutputStream(tls,OUTPUT_BUFFER_SIZE,maxPending);
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void printCiphers(SSLSocketFactory ssf) {
@@ -216,39 +476,203 @@ class Connection {
         }
     }
 
+    /**
+     * the subscription is added with the SUBs that follow it, before the next other command is processed,
+     * so a client subscribing to many subjects at once changes the sublist and the cache once. A verbose
+     * client is acknowledged per SUB, so its subscriptions are added at once.
+     */
     private void addSubscription(CharSeq subject, CharSeq group, int ssid) throws IOException {
         server.logger.info("subscribing subject="+subject+",group="+group+",ssid="+ssid);
         Subscription s = new Subscription(this,ssid,subject.dup(),group.dup());
-        server.addSubscription(s);
-        if(isVerbose())
+        Subscription old = pendingSubs.put(ssid,s);
+        if(old!=null)
+            old.release(); // replaced before it was added
+        if(isVerbose()) {
+            addPendingSubscriptions();
             sendOK();
+        }
     }
 
-    private void removeSubscription(int ssid) throws IOException {
-        server.logger.info("un-subscribing ssid = "+ssid);
-        Subscription s = new Subscription(this,ssid,CharSeq.EMPTY,CharSeq.EMPTY);
-        server.removeSubscription(s);
+    private void addPendingSubscriptions() {
+        if(pendingSubs.isEmpty())
+            return;
+        // released by the server instead if the connection has been closed
+        server.addSubscriptions(this,pendingSubs.values());
+        pendingSubs.clear();
+    }
+
+    private void removeSubscription(int ssid, int max) throws IOException {
+        server.logger.info("un-subscribing ssid = "+ssid+", max = "+max);
+        if(max>0)
+            server.autoUnsubscribe(this,ssid,max);
+        else
+            server.removeSubscription(this,ssid);
         if(isVerbose())
             sendOK();
     }
 
     private static byte[] OK = "+OK\r\n".getBytes();
-    private synchronized void sendOK() throws IOException {
-        w.write(OK);
+    private void sendOK() throws IOException {
+        lock.lock();
+        try {
+            w.write(OK);
+        } finally {
+            lock.unlock();
+        }
         flush();
     }
 
-    private synchronized void sendError(Exception e) throws IOException {
+    private void sendError(Exception e) throws IOException {
         sendError(e.toString());
     }
-    private synchronized void sendError(String err) throws IOException {
-        w.write(("-ERR '"+err+"'\r\n").getBytes());
+    private void sendError(String err) throws IOException {
+        lock.lock();
+        try {
+            w.write(("-ERR '"+err+"'\r\n").getBytes());
+        } finally {
+            lock.unlock();
+        }
         flush();
     }
 
-    private synchronized void flush() throws IOException {
-        w.flush();
+    /**
+     * write the buffered output. With the event loop the write never blocks, the loop completes it.
+     * Otherwise the output is taken and written without holding the output lock, so a slow socket
+     * does not hold up the threads writing messages, and a thread finding a write in progress leaves
+     * its output to the writing thread.
+     */
+    private void flush() throws IOException {
+        if(loop!=null) {
+            lock.lock();
+            try {
+                int bytes = pendingBytes;
+                long start = System.nanoTime();
+                boolean flushed = ((ChannelOutputStream)w).tryFlush();
+                recordWrites();
+                if(!flushed) {
+                    if(writeStartNanos==0)
+                        writeStartNanos = start;
+                    loop.requestWrite(this);
+                    return;
+                }
+                flushPolicy.onFlush(bytes,System.nanoTime()-start);
+                flushed();
+                drained();
+            } finally {
+                lock.unlock();
+            }
+        } else if(!(w instanceof ChannelOutputStream)) {
+            lock.lock();
+            try {
+                w.flush();
+                flushed();
+                drained();
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            do {
+                if(!writeLock.tryLock())
+                    return;
+                try {
+                    while(writeOutput());
+                } finally {
+                    writeLock.unlock();
+                }
+                // output written after the last batch was taken, but before the write lock was released
+            } while(hasPendingOutput());
+        }
+    }
+
+    /**
+     * write the pending output to the blocking socket, holding the write lock
+     * @return false if there was nothing to write
+     */
+    private boolean writeOutput() throws IOException {
+        ChannelOutputStream cos = (ChannelOutputStream)w;
+        ChannelOutputStream.Batch batch;
+        int bytes;
+        lock.lock();
+        try {
+            if(cos.pending()==0)
+                return false;
+            bytes = pendingBytes;
+            batch = cos.takeOutput();
+            flushed();
+            batchMsgs = pendingMsgs;
+            pendingMsgs = 0;
+            writeStartNanos = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+        long start = writeStartNanos;
+        try {
+            batch.write();
+        } finally {
+            lock.lock();
+            try {
+                cos.complete(batch);
+                recordWrites();
+                flushPolicy.onFlush(bytes,System.nanoTime()-start);
+                batchMsgs = 0;
+                writeStartNanos = 0;
+                if(cos.pending()==0)
+                    drained();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    private void flushed() {
         lastWriteNanos=0;
+        pendingBytes=0;
+        flushDue=false;
+    }
+
+    /**
+     * the socket accepted all of the output
+     */
+    private void drained() {
+        pendingMsgs=0;
+        writeStartNanos=0;
+        dropping=false;
+    }
+
+    /**
+     * report the channel writes since the last report, for the server's bytes per write statistic
+     */
+    private void recordWrites() {
+        if(!(w instanceof ChannelOutputStream))
+            return;
+        ChannelOutputStream cos = (ChannelOutputStream)w;
+        long writes = cos.writes(), bytes = cos.bytesWritten();
+        server.recordWrites(writes-reportedWrites,bytes-reportedBytes);
+        reportedWrites=writes;
+        reportedBytes=bytes;
+    }
+
+    /**
+     * @return the number of bytes buffered for the socket but not yet accepted by it. Read without
+     * locking, so approximate.
+     */
+    long getPendingBytes() {
+        return pendingOutput();
+    }
+
+    private long pendingOutput() {
+        if(w instanceof ChannelOutputStream)
+            return ((ChannelOutputStream)w).pending();
+        return pendingBytes;
+    }
+
+    /**
+     * @return the number of messages buffered for the socket but not yet accepted by it. Read without
+     * locking, so approximate.
+     */
+    int getPendingMsgs() {
+        return pendingMsgs+batchMsgs;
     }
 
     private boolean isVerbose() {
@@ -259,42 +683,84 @@ class Connection {
         return options.echo;
     }
 
-    private static byte[] MSG = "MSG ".getBytes();
-    private static byte[] CR_LF = "\r\n".getBytes();
-
-    private static class OutMessage {
-        final Subscription sub;
-        final InMessage msg;
+    /**
+     * @return true if a request that reaches no subscriber is answered at once with a 503 status, which
+     * requires headers
+     */
+    boolean isNoResponders() {
+        return options.no_responders && options.headers;
+    }
 
-        public OutMessage(Subscription sub, InMessage msg) {
-            this.sub=sub;
-            this.msg=msg;
+    /**
+     * @return a subscription, not in a queue group, matching the literal subject, or null if there is none
+     */
+    Subscription subscriptionFor(CharSeq subject) {
+        for (Subscription s : subscriptions.values()) {
+            if(s.group.equals(CharSeq.EMPTY) && s.matches(subject))
+                return s;
         }
+        return null;
     }
-    boolean maybeFlush() {
-        long lw = lastWriteNanos;
-        if(lw==0 || closed)
-            return true;
-        if(System.nanoTime()-lw<TimeUnit.MICROSECONDS.toNanos(500))
-            return false;
+
+
+    /**
+     * @return the nanos until the buffered output is due to be flushed, or 0 if it is due now or there is none
+     */
+    long flushDelay(long now) {
+        if(lastWriteNanos==0 || closed)
+            return 0;
+        return flushPolicy.delay(firstWriteNanos,pendingBytes,now);
+    }
+
+    /**
+     * flush the output, called by the flusher once it is due. A blocking socket is written by the
+     * connection's writer, so the flusher's other connections are not held up by this one.
+     */
+    void flushPending() {
+        if(lastWriteNanos==0 || closed)
+            return;
+        if(writer!=null) {
+            writeRequested.set(true);
+            LockSupport.unpark(writer);
+            return;
+        }
         try {
             flush();
         } catch (IOException e) {
             server.logger.warning("unable to flush");
             server.closeConnection(Connection.this);
         }
-        return true;
     }
 
-    void sendMessage(Subscription sub,InMessage msg)  {
+    /**
+     * wake the writer to flush the output once due, in place of the flusher with the virtual transport
+     */
+    void scheduleFlush() {
+        flushQueued.set(true);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * wake the writer to write the queued messages, in place of the flusher with the virtual transport
+     */
+    void scheduleDelivery() {
+        LockSupport.unpark(writer);
+    }
+
+    void sendMessage(SubscriptionMatch.Recipient recipient,InMessage msg)  {
         if (closed)
             return;
 
-        OutMessage m = new OutMessage(sub,msg);
+        if (deliveries!=null) {
+            queueMessage(recipient,msg);
+            return;
+        }
+
         try {
-            long lw = lastWriteNanos;
-            writeMessage(m);
-            if(lw==0) {
+            boolean notify = writeMessage(recipient,msg);
+            if(abandoned) {
+                server.closeConnection(Connection.this);
+            } else if(notify) {
                 server.needsFlush(this);
             }
         } catch (IOException e) {
@@ -303,89 +769,220 @@ class Connection {
         }
     }
 
-    private synchronized void writeMessage(OutMessage out) throws IOException {
-        if(out==null)
+    /**
+     * queue the message for the flusher to write, so the publisher neither waits for the output lock nor
+     * copies the message. If the queue stays full the publisher writes the queued messages itself, and
+     * then retries, as writing its own directly could overtake its earlier messages still queued.
+     */
+    private void queueMessage(SubscriptionMatch.Recipient recipient,InMessage msg) {
+        msg.retain();
+        Delivery delivery = new Delivery(recipient,msg);
+        while(!deliveries.offer(delivery)) {
+            // the queue is full. The head may be claimed by another publisher and not yet stored, so yield to it.
+            if(!writeQueued())
+                Thread.yield();
+            if(closed) {
+                msg.release();
+                return;
+            }
+        }
+        if(closed) {
+            discardQueued(); // in case the close discarded the queue before the offer
             return;
+        }
+        if(deliveryQueued.compareAndSet(false,true))
+            server.deliver(this);
+    }
 
-        nMsgsWrite++;
-
-        InMessage in = out.msg;
-
-//        System.out.println("sending to "+sub+", subject="+subject);
-        w.write(MSG);
-        in.subject.write(w);
-        w.write(' ');
-        writeInt(w,out.sub.ssid);
-        if(out.msg.reply.length()!=0) {
-            w.write(' ');
-            in.reply.write(w);
-        }
-        w.write(' ');
-        writeInt(w,in.data.length);
-        w.write(CR_LF);
-        w.write(in.data);
-        w.write(CR_LF);
-        lastWriteNanos = System.nanoTime();
-    }
-
-    private final byte[] intToBytes = new byte[32];
-    private void writeInt(OutputStream w,int i) throws IOException {
-        int offset=intToBytes.length-1;
-        do {
-            char c = (char) (i%10+'0');
-            intToBytes[offset--]=(byte)c;
-            i/=10;
-        } while(i>0);
-        w.write(intToBytes,offset+1,intToBytes.length-1-offset);
+    /**
+     * write the queued messages to the output
+     * @return true if any were written
+     */
+    boolean writeQueued() {
+        boolean notify = false;
+        boolean written = false;
+        try {
+            lock.lock();
+            try {
+                for(Delivery d; (d=deliveries.poll())!=null; written=true)
+                    notify |= writeDelivery(d);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            server.logger.warning("interrupted, closing connection");
+            server.closeConnection(Connection.this);
+        }
+        if(abandoned) {
+            server.closeConnection(Connection.this);
+        } else if(notify) {
+            server.needsFlush(this);
+        }
+        return written;
     }
 
-    private CharSeq readLine(byte[] buffer,InputStream r) throws IOException {
-        int len=0;
-        for (int c = r.read(); ; c = r.read()) {
-            if (c == -1)
-                throw new EOFException();
-            if (c == '\r')
-                continue;
-            if (c == '\n')
-                break;
-            if(len==buffer.length)
-                throw new IOException("line too long");
-            buffer[len++]=(byte)c;
+    private boolean writeDelivery(Delivery d) throws IOException {
+        try {
+            return writeMessage(d.recipient,d.msg);
+        } finally {
+            d.msg.release();
         }
+    }
 
-        return new CharSeq(buffer,0,len);
+    private void discardQueued() {
+        lock.lock();
+        try {
+            deliveries.drainTo(d -> d.msg.release(),Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void readPayload(InputStream r,byte[] msg) throws IOException {
-        int len=msg.length;
-        int offset=0;
+    /**
+     * @return true if the flusher needs to be told, because the output was clean before the write or
+     * the flush policy says it is now due
+     */
+    private boolean writeMessage(SubscriptionMatch.Recipient recipient,InMessage in) throws IOException {
+        lock.lock();
+        try {
+            if(closed || abandoned)
+                return false; // the output was discarded
+            if(dropping) {
+                server.messageDropped();
+                return false;
+            }
+            // a header block is delivered with HMSG if the connection accepts headers, and skipped otherwise
+            boolean hmsg = in.hdrLength!=0 && options.headers;
+            int start = hmsg ? in.offset-in.hdrLength : in.offset;
+            int length = hmsg ? in.hdrLength+in.length : in.length;
+            int size = (hmsg ? 1+recipient.prefix.length+in.hmsgHeaderLength : recipient.prefix.length+in.headerLength)+length+2;
+            if(pendingOutput()+size>maxPending) {
+                slowConsumer("maximum pending bytes of "+maxPending+" exceeded");
+                return false;
+            }
+            if(pendingMsgs+batchMsgs>=maxPendingMsgs) {
+                slowConsumer("maximum pending messages of "+maxPendingMsgs+" exceeded");
+                return false;
+            }
+            nMsgsWrite++;
+            pendingMsgs++;
 
-        while (len > 0) {
-            int read = r.read(msg, offset, len);
-            if(read <0)
-                throw new EOFException();
+//        System.out.println("sending to "+sub+", subject="+subject);
+            if(hmsg) {
+                w.write('H');
+                w.write(recipient.prefix);
+                w.write(in.data,in.hmsgHeaderOffset,in.hmsgHeaderLength);
+            } else {
+                w.write(recipient.prefix);
+                w.write(in.data,in.headerOffset,in.headerLength);
+            }
+            if(length>=gatherThreshold && w instanceof ChannelOutputStream) {
+                // written from the message's buffer, rather than copied for every subscriber
+                ((ChannelOutputStream)w).writeShared(in,in.data,start,length+2);
+            } else {
+                w.write(in.data,start,length+2);
+            }
+            pendingBytes += length;
+            long now = System.nanoTime();
+            boolean wasClean = lastWriteNanos==0;
+            if(wasClean)
+                firstWriteNanos = now;
+            lastWriteNanos = now;
+            flushPolicy.onWrite(length,now);
+            if(flushDue)
+                return false;
+            // output beyond the buffer is held until written, so flush it regardless of the policy
+            flushDue = flushPolicy.delay(firstWriteNanos,pendingBytes,now)==0 || pendingOutput()>=OUTPUT_BUFFER_SIZE;
+            return wasClean || flushDue;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            offset += read;
-            len -= read;
+    private static final byte[] SLOW_CONSUMER = "-ERR 'Slow Consumer'\r\n".getBytes();
+    /**
+     * the connection has exceeded a pending limit or the write deadline. Called holding the output lock,
+     * and the connection must be closed after releasing it if its output is abandoned.
+     */
+    private void slowConsumer(String reason) {
+        server.slowConsumer();
+        if(slowConsumerPolicy==Server.SlowConsumerPolicy.DROP) {
+            log(Level.WARNING,"slow consumer, "+reason+", dropping messages");
+            server.messageDropped();
+            dropping=true;
+        } else {
+            log(Level.WARNING,"slow consumer, "+reason+", closing connection");
+            abandoned=true;
         }
+        try {
+            // follows the pending output, so only sent if the socket accepts that
+            w.write(SLOW_CONSUMER);
+        } catch (IOException ignored) {
+        }
+    }
 
-        r.read();
-        r.read(); // skip CR-LF
+    /**
+     * called periodically, as a thread blocked writing to the socket can't check the deadline itself
+     */
+    void checkWriteDeadline(long now) {
+        long start = writeStartNanos;
+        if(start==0 || now-start<=writeDeadline || closed)
+            return;
+        lock.lock();
+        try {
+            if(dropping || abandoned || writeStartNanos!=start)
+                return;
+            slowConsumer("write deadline exceeded");
+        } finally {
+            lock.unlock();
+        }
+        if(abandoned)
+            server.closeConnection(Connection.this);
     }
 
     public void close() {
+        established(); // closed before CONNECT, so no longer waiting for it
         try {
-            flush();
-            socket.close();
+            if(!abandoned) {
+                flush();
+            } else if(loop!=null) {
+                // without waiting, in case the socket accepts the remaining output and the error
+                lock.lock();
+                try {
+                    ((ChannelOutputStream)w).tryFlush();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if(tls!=null)
+                tls.close();
+            else
+                socket.close();
         } catch (IOException e) {
 //            e.printStackTrace();
         } finally {
             closed=true;
-            reader.interrupt();
+            if(deliveries!=null)
+                discardQueued();
+            if(w instanceof ChannelOutputStream) {
+                lock.lock();
+                try {
+                    ((ChannelOutputStream)w).discard();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if(reader!=null)
+                reader.interrupt();
+            if(writer!=null)
+                LockSupport.unpark(writer);
         }
 
+        if(reader==null)
+            return;
         try {
             reader.join();
+            writer.join();
         } catch (InterruptedException e) {
             log(Level.WARNING,"unable to join reader",e);
         }
@@ -417,6 +1014,9 @@ class Connection {
         public String user;
         public String pass;
         public String json;
+        public String flush_policy; // overrides the server's flush policy, see FlushPolicy
+        public boolean headers; // messages published with headers are delivered as HMSG, rather than MSG without them
+        public boolean no_responders; // a request without subscribers is answered with a 503 status, see Server.noResponders
     }
 
 }
@@ -0,0 +1,146 @@
+package com.robaho.jnatsd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * selector driven I/O loop for the non-blocking transport. Each loop owns a subset of the
+ * connections: reads and protocol parsing are driven by read readiness, and output the socket
+ * did not accept is resumed on write readiness.
+ *
+ * Connections are closed by other threads too, cancelling their keys at any point, so a failure
+ * processing one connection closes only that connection and the loop carries on.
+ */
+class EventLoop implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean done;
+
+    EventLoop(Server server, int index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "EventLoop-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        done = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    /**
+     * register the connection's channel for reads, and for writes if it already has pending output
+     */
+    void register(Connection connection) {
+        execute(() -> {
+            try {
+                int ops = SelectionKey.OP_READ | (connection.hasPendingOutput() ? SelectionKey.OP_WRITE : 0);
+                SelectionKey key = connection.getChannel().register(selector, ops, connection);
+                connection.setSelectionKey(key);
+                // input read with the TLS handshake is not signalled by the selector
+                if (connection.hasBufferedInput())
+                    process(key, SelectionKey.OP_READ);
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                server.closeConnection(connection);
+            }
+        });
+    }
+
+    /**
+     * add OP_WRITE to the connection's interest set, so the pending output is flushed when the socket is writable
+     */
+    void requestWrite(Connection connection) {
+        if (Thread.currentThread() == thread) {
+            enableWrite(connection.getSelectionKey());
+        } else {
+            execute(() -> enableWrite(connection.getSelectionKey()));
+        }
+    }
+
+    private static void enableWrite(SelectionKey key) {
+        try {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException ignored) {
+            // the connection was closed after the check, its output is discarded
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!done) {
+                selector.select();
+                for (Runnable task; (task = tasks.poll()) != null; ) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        server.logger.log(Level.WARNING, "event loop task failed", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    process(key);
+                }
+            }
+        } catch (IOException e) {
+            server.logger.log(Level.SEVERE, "event loop failed", e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void process(SelectionKey key) {
+        process(key, key.isValid() ? key.readyOps() : 0);
+    }
+
+    private void process(SelectionKey key, int readyOps) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isValid() && (readyOps & SelectionKey.OP_READ) != 0) {
+                connection.onReadable();
+            }
+            if (key.isValid() && (readyOps & SelectionKey.OP_WRITE) != 0) {
+                if (connection.onWritable())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (EOFException e) {
+            key.cancel();
+            server.closeConnection(connection);
+        } catch (CancelledKeyException e) {
+            // closed by another thread
+            server.closeConnection(connection);
+        } catch (IOException e) {
+            server.logger.log(Level.WARNING, connection.getRemote() + ": connection failed, expected if client closed socket", e);
+            key.cancel();
+            server.closeConnection(connection);
+        } catch (RuntimeException e) {
+            server.logger.log(Level.WARNING, connection.getRemote() + ": connection failed", e);
+            key.cancel();
+            server.closeConnection(connection);
+        }
+    }
+}
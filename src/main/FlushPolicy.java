@@ -0,0 +1,154 @@
+package com.robaho.jnatsd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decides when a connection's buffered output is flushed, trading latency for fewer, larger writes.
+ * Each connection has its own instance. onWrite and onFlush are called holding the connection's
+ * output lock, delay is called by the flusher without it.
+ *
+ * Policies are specified as:
+ *   immediate          flush as soon as the flusher sees the write
+ *   delay:micros       flush a fixed time after the first unflushed write
+ *   bytes:n[:micros]   flush once n message bytes are buffered, or after micros (default 1000)
+ *   adaptive[:micros]  flush immediately while messages arrive slower than a write costs, otherwise
+ *                      delay by a few write costs, up to micros (default 1000)
+ */
+interface FlushPolicy {
+    /**
+     * a message of the given size was buffered
+     */
+    default void onWrite(int bytes, long now) {
+    }
+
+    /**
+     * the buffered output was written to the socket, taking elapsed nanos
+     */
+    default void onFlush(int bytes, long elapsed) {
+    }
+
+    /**
+     * @param firstWrite the time of the first unflushed write
+     * @param pendingBytes the message bytes buffered
+     * @return the nanos until the output should be flushed, 0 to flush now
+     */
+    long delay(long firstWrite, int pendingBytes, long now);
+
+    /**
+     * @return a new policy instance from its specification
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    static FlushPolicy parse(String spec) {
+        String[] parts = spec.trim().toLowerCase().split(":");
+        try {
+            switch (parts[0]) {
+                case "immediate":
+                    if (parts.length == 1)
+                        return new Immediate();
+                    break;
+                case "delay":
+                    if (parts.length == 2)
+                        return new FixedDelay(micros(parts[1]));
+                    break;
+                case "bytes":
+                    if (parts.length == 2 || parts.length == 3)
+                        return new ByteThreshold(Integer.parseInt(parts[1]), parts.length == 3 ? micros(parts[2]) : micros("1000"));
+                    break;
+                case "adaptive":
+                    if (parts.length == 1 || parts.length == 2)
+                        return new Adaptive(parts.length == 2 ? micros(parts[1]) : micros("1000"));
+                    break;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("invalid flush policy: " + spec);
+    }
+
+    static long micros(String s) {
+        return TimeUnit.MICROSECONDS.toNanos(Long.parseLong(s));
+    }
+
+    class Immediate implements FlushPolicy {
+        public long delay(long firstWrite, int pendingBytes, long now) {
+            return 0;
+        }
+    }
+
+    class FixedDelay implements FlushPolicy {
+        final long delay;
+
+        FixedDelay(long delay) {
+            this.delay = delay;
+        }
+
+        public long delay(long firstWrite, int pendingBytes, long now) {
+            return Math.max(0, delay - (now - firstWrite));
+        }
+    }
+
+    class ByteThreshold implements FlushPolicy {
+        final int threshold;
+        final long maxDelay;
+
+        ByteThreshold(int threshold, long maxDelay) {
+            this.threshold = threshold;
+            this.maxDelay = maxDelay;
+        }
+
+        public long delay(long firstWrite, int pendingBytes, long now) {
+            if (pendingBytes >= threshold)
+                return 0;
+            return Math.max(0, maxDelay - (now - firstWrite));
+        }
+    }
+
+    /**
+     * tracks moving averages of the interval between messages and the cost of a flush. Delaying only
+     * pays when several messages arrive within the time a write takes, so while the interval exceeds
+     * the cost the output is flushed immediately; otherwise the flush is delayed by a few write costs
+     * so each write carries several messages.
+     */
+    class Adaptive implements FlushPolicy {
+        private static final int COST_MULTIPLE = 4;
+
+        final long maxDelay;
+        private long lastWrite;
+        private long interval = -1; // until measured
+        private long cost = -1;
+        private volatile long delay;
+
+        Adaptive(long maxDelay) {
+            this.maxDelay = maxDelay;
+        }
+
+        public void onWrite(int bytes, long now) {
+            if (lastWrite != 0)
+                interval = average(interval, now - lastWrite);
+            lastWrite = now;
+            update();
+        }
+
+        public void onFlush(int bytes, long elapsed) {
+            cost = average(cost, elapsed);
+            update();
+        }
+
+        private static long average(long average, long sample) {
+            return average < 0 ? sample : average + (sample - average) / 8;
+        }
+
+        private void update() {
+            if (interval < 0 || cost < 0)
+                return;
+            delay = interval >= cost ? 0 : Math.min(maxDelay, cost * COST_MULTIPLE);
+        }
+
+        public long delay(long firstWrite, int pendingBytes, long now) {
+            return Math.max(0, delay - (now - firstWrite));
+        }
+
+        long currentDelay() {
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.robaho.jnatsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * flushes the buffered output of a shard of the connections. A connection is queued when its output
+ * goes from clean to dirty, so the flusher only visits connections with something to flush, and
+ * otherwise parks until woken by the next one. With queued delivery, the flusher also writes the
+ * connection's queued messages to its output.
+ *
+ * The flusher never waits on a socket. A non-blocking socket is written as far as it accepts, and a
+ * blocking socket is handed to the connection's writer, so one slow consumer cannot hold up a shard.
+ */
+class Flusher implements Runnable {
+    private final Thread thread;
+    private final Queue<Connection> dirty = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> delivering = new ConcurrentLinkedQueue<>(); // with queued messages
+    private final List<Connection> waiting = new ArrayList<>(); // dirty, but not yet due
+    private volatile boolean done;
+
+    Flusher(int index) {
+        this.thread = new Thread(this, "Flusher-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        done = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    /**
+     * queue the connection to be flushed, if it is not already queued, and wake the flusher to
+     * re-evaluate when its output is due
+     */
+    void schedule(Connection connection) {
+        if (connection.flushQueued.compareAndSet(false, true))
+            dirty.add(connection);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * queue the connection to have its queued messages written. The connection ensures it is only
+     * queued once until they are written.
+     */
+    void deliver(Connection connection) {
+        delivering.add(connection);
+        LockSupport.unpark(thread);
+    }
+
+    public void run() {
+        while (!done) {
+            for (Connection c; (c = delivering.poll()) != null; ) {
+                // cleared before writing, so a message queued after the write queues the connection again
+                c.deliveryQueued.set(false);
+                c.writeQueued();
+            }
+            for (Connection c; (c = dirty.poll()) != null; ) {
+                waiting.add(c);
+            }
+            long now = System.nanoTime();
+            long park = Long.MAX_VALUE;
+            for (int i = 0; i < waiting.size(); ) {
+                Connection c = waiting.get(i);
+                long delay = c.flushDelay(now);
+                if (delay > 0) {
+                    park = Math.min(park, delay);
+                    i++;
+                    continue;
+                }
+                // swap remove, order does not matter
+                waiting.set(i, waiting.get(waiting.size() - 1));
+                waiting.remove(waiting.size() - 1);
+                // cleared before flushing, so a write after the flush queues the connection again
+                c.flushQueued.set(false);
+                c.flushPending();
+            }
+            // a schedule() while flushing may have had its unpark consumed by blocking on a connection's lock
+            if (!dirty.isEmpty() || !delivering.isEmpty())
+                continue;
+            if (park == Long.MAX_VALUE) {
+                LockSupport.park();
+            } else {
+                LockSupport.parkNanos(park);
+            }
+        }
+    }
+}
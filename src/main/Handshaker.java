@@ -0,0 +1,138 @@
+package com.robaho.jnatsd;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * completes accepted connections, sending INFO and performing the TLS handshake, on a pool of workers
+ * so the listener only accepts. A connection is established once the client has sent CONNECT. One not
+ * established within the timeout, including any time spent waiting for a worker, is closed, and
+ * closing its socket also fails a handshake blocked reading it.
+ */
+class Handshaker {
+    private final Server server;
+    private final long timeout;
+    private final ExecutorService workers;
+    private final ScheduledThreadPoolExecutor timer;
+    private final LongAdder timeouts = new LongAdder();
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1; // established, or failed or closed before the timeout
+    private static final int EXPIRED = 2;
+
+    /**
+     * @param timeout the milliseconds allowed to establish a connection
+     */
+    Handshaker(Server server, int threads, long timeout) {
+        this.server = server;
+        this.timeout = timeout;
+        AtomicInteger index = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "Handshake-" + index.getAndIncrement()));
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "HandshakeTimeout");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    void stop() throws InterruptedException {
+        // interrupting a worker closes the channel it is blocked on
+        workers.shutdownNow();
+        timer.shutdownNow();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * establish the connection asynchronously
+     * @param loop the event loop to process the connection, or null to use a reader thread
+     */
+    void submit(SocketChannel ch, EventLoop loop) {
+        Pending pending = new Pending(ch);
+        pending.expiry = timer.schedule(pending::expired, timeout, TimeUnit.MILLISECONDS);
+        workers.execute(() -> handshake(pending, loop));
+    }
+
+    private void handshake(Pending pending, EventLoop loop) {
+        SocketChannel ch = pending.ch;
+        if (pending.state.get() != PENDING)
+            return; // closed while waiting for a worker
+        Connection c;
+        try {
+            c = new Connection(server, ch.socket(), loop);
+        } catch (IOException e) {
+            // failing because it expired was already logged
+            if (pending.settle())
+                server.logger.log(Level.WARNING, "unable to establish connection from " + ch.socket().getRemoteSocketAddress(), e);
+            close(ch);
+            return;
+        }
+        pending.connection = c;
+        c.whenEstablished(pending::settle);
+        server.addConnection(c);
+        // if it expired before the connection was added, the expiry could not close it
+        if (pending.state.get() == EXPIRED)
+            server.closeConnection(c);
+    }
+
+    /**
+     * a connection being established. Its state is set by whichever of the client's CONNECT, a failure,
+     * and the expiry happens first. The expiry's future cannot decide that, as it can still be cancelled
+     * while the expiry is running.
+     */
+    private class Pending {
+        final SocketChannel ch;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        volatile ScheduledFuture<?> expiry;
+        volatile Connection connection; // once the handshake completes
+
+        Pending(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        /**
+         * @return true if the connection was settled before it expired
+         */
+        boolean settle() {
+            if (!state.compareAndSet(PENDING, DONE))
+                return false;
+            expiry.cancel(false);
+            return true;
+        }
+
+        void expired() {
+            if (!state.compareAndSet(PENDING, EXPIRED))
+                return;
+            timeouts.increment();
+            server.logger.warning("connection from " + ch.socket().getRemoteSocketAddress() + " not established within " + timeout + " ms, closing");
+            Connection c = connection;
+            if (c != null)
+                server.closeConnection(c);
+            close(ch);
+        }
+    }
+
+    private static void close(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return the number of connections closed for not completing the handshake in time
+     */
+    long getTimeouts() {
+        return timeouts.sum();
+    }
+}
@@ -1,24 +1,136 @@
 package com.robaho.jnatsd;
 
+import com.robaho.jnatsd.util.Ascii;
+import com.robaho.jnatsd.util.BufferPool;
 import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.Headers;
+import com.robaho.jnatsd.util.RefCounted;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
- * an inbound message from a Connection
+ * an inbound message from a Connection. The subject, reply and payload share a single pooled buffer,
+ * which is returned to the pool when the last reference is released. The publisher holds the initial
+ * reference while the message is routed; anything holding the message beyond that must retain it.
+ *
+ * The buffer also holds the parts of the MSG line that are the same for every subscriber, so each
+ * delivery is three bulk writes: the subscription's prefix, the header, and the payload with its CRLF.
+ *
+ *     subject | [reply ' '] size CRLF | payload CRLF
+ *               ^ header                ^ payload
+ *
+ * A message published with HPUB also has the tail of the HMSG line, and its header block ahead of the
+ * payload. The block is forwarded as is to connections that accept headers, and skipped for the others,
+ * which receive a MSG with the payload alone from the same buffer.
+ *
+ *     subject | [reply ' '] size CRLF | [reply ' '] hdrsize totalsize CRLF | headers payload CRLF
+ *               ^ header                ^ hmsgHeader                         ^ hdr    ^ payload
  */
-class InMessage {
+class InMessage implements RefCounted {
+    private static final AtomicIntegerFieldUpdater<InMessage> REFS = AtomicIntegerFieldUpdater.newUpdater(InMessage.class, "refs");
+
     final Connection connection;
     final byte[] data;
+    final int offset;
+    final int length; // of the payload, not including any header block or the trailing CRLF
+    final int headerOffset;
+    final int headerLength;
+    final int hdrLength; // of the header block preceding the payload, 0 if there is none
+    final int hmsgHeaderOffset;
+    final int hmsgHeaderLength;
     final CharSeq subject;
     final CharSeq reply;
 
-    final long when = System.currentTimeMillis();
+    final long when;
 
-    public InMessage(Connection connection, CharSeq subject, CharSeq reply, byte[] data) {
+    private final BufferPool pool;
+    private volatile int refs = 1;
+
+    private InMessage(Connection connection, BufferPool pool, byte[] buffer, CharSeq subject, CharSeq reply, int length, int hdrLength, long when) {
         this.connection=connection;
-        this.subject=subject;
-        this.reply=reply;
-        this.data=data;
+        this.pool=pool;
+        this.when=when;
+        int subjectLen = subject.length();
+        int replyLen = reply.length();
+        subject.copyTo(buffer,0);
+        int off = subjectLen;
+        if(replyLen!=0) {
+            off += reply.copyTo(buffer,off);
+            buffer[off++]=' ';
+        }
+        off = Ascii.putInt(buffer,off,length);
+        buffer[off++]='\r';
+        buffer[off++]='\n';
+        this.subject=new CharSeq(buffer,0,subjectLen,subject.hashCode());
+        this.reply=replyLen==0 ? CharSeq.EMPTY : new CharSeq(buffer,subjectLen,replyLen,reply.hashCode());
+        this.data=buffer;
+        this.headerOffset=subjectLen;
+        this.headerLength=off-subjectLen;
+        this.hmsgHeaderOffset=off;
+        if(hdrLength!=0) {
+            if(replyLen!=0) {
+                off += reply.copyTo(buffer,off);
+                buffer[off++]=' ';
+            }
+            off = Ascii.putInt(buffer,off,hdrLength);
+            buffer[off++]=' ';
+            off = Ascii.putInt(buffer,off,hdrLength+length);
+            buffer[off++]='\r';
+            buffer[off++]='\n';
+        }
+        this.hmsgHeaderLength=off-hmsgHeaderOffset;
+        this.hdrLength=hdrLength;
+        this.offset=off+hdrLength;
+        this.length=length;
+    }
+
+    /**
+     * @param length of the payload, including the header block of hdrLength bytes that begins it
+     * @return a message holding a copy of the subject, reply and payload in a buffer from the pool
+     */
+    static InMessage copyOf(Connection connection, CharSeq subject, CharSeq reply, byte[] payload, int offset, int length, int hdrLength, long when, BufferPool pool) {
+        int header = reply.length()+1+Ascii.digits(length-hdrLength)+2;
+        if(hdrLength!=0)
+            header += reply.length()+1+Ascii.digits(hdrLength)+1+Ascii.digits(length)+2;
+        byte[] buffer = pool.acquire(subject.length()+header+length+2);
+        InMessage m = new InMessage(connection,pool,buffer,subject,reply,length-hdrLength,hdrLength,when);
+        System.arraycopy(payload,offset,buffer,m.offset-hdrLength,length);
+        buffer[m.offset+m.length]='\r';
+        buffer[m.offset+m.length+1]='\n';
+        return m;
+    }
+
+    /**
+     * @return the value of the header, parsed from the header block on each call, or null if there is none
+     */
+    CharSeq header(String name) {
+        return hdrLength==0 ? null : Headers.get(data,offset-hdrLength,hdrLength,name);
     }
+
+    /**
+     * @return the status code in the header block, or 0 if there is none
+     */
+    int status() {
+        return hdrLength==0 ? 0 : Headers.status(data,offset-hdrLength,hdrLength);
+    }
+
+    public void retain() {
+        REFS.incrementAndGet(this);
+    }
+
+    /**
+     * release a reference, returning the buffer to the pool if it was the last. The subject, reply and
+     * payload must not be used afterwards.
+     */
+    public void release() {
+        int n = REFS.decrementAndGet(this);
+        if (n == 0) {
+            pool.release(data);
+        } else if (n < 0) {
+            throw new IllegalStateException("message released too many times");
+        }
+    }
+
     public String toString() {
         return subject+":"+reply+":"+connection.getRemote();
     }
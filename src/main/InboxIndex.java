@@ -0,0 +1,147 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.robaho.jnatsd.util.TokenTable.FWC;
+import static com.robaho.jnatsd.util.TokenTable.PWC;
+
+/**
+ * request/reply inboxes, subscriptions to "_INBOX.id" or to subjects below it such as "_INBOX.id.*",
+ * indexed by the id. Every reply goes to a unique subject, so through the sublist and the match cache
+ * each would miss, be matched, and then occupy a cache entry. Here a reply is routed by a hash lookup
+ * on its second token, and a match of the remaining tokens against the few subscriptions for the id.
+ *
+ * Inboxes are held here instead of in the sublist. Updates must be serialized by the caller, lookups
+ * are lock free.
+ */
+class InboxIndex {
+    private static final byte[] PREFIX = "_INBOX.".getBytes();
+
+    private final Map<CharSeq, Subscription[]> inboxes = new ConcurrentHashMap<>();
+    private int count;
+
+    /**
+     * @return true if the subscription is an inbox, a subscription without a queue group to a subject
+     * below "_INBOX" with a literal second token
+     */
+    static boolean isInbox(Subscription s) {
+        return s.group.equals(CharSeq.EMPTY) && s.tokens.length >= 2 && s.subject.regionEquals(0, PREFIX)
+                && s.tokens[1] != PWC && s.tokens[1] != FWC;
+    }
+
+    /**
+     * @return true if a subscription held elsewhere may match an inbox subject, so replies must also be
+     * routed through the sublist
+     */
+    static boolean mayMatchInbox(Subscription s) {
+        return s.tokens[0] == PWC || s.tokens[0] == FWC || s.subject.regionEquals(0, PREFIX);
+    }
+
+    /**
+     * @return true if the message subject is below "_INBOX"
+     */
+    static boolean isInboxSubject(CharSeq subject) {
+        return subject.length() > PREFIX.length && subject.regionEquals(0, PREFIX);
+    }
+
+    void add(Subscription s) {
+        CharSeq id = id(s.subject);
+        Subscription[] subs = inboxes.get(id);
+        if (subs == null) {
+            subs = new Subscription[]{s};
+        } else {
+            subs = Arrays.copyOf(subs, subs.length + 1);
+            subs[subs.length - 1] = s;
+        }
+        inboxes.put(id, subs);
+        count++;
+    }
+
+    void remove(Subscription s) {
+        CharSeq id = id(s.subject);
+        Subscription[] subs = inboxes.get(id);
+        if (subs == null)
+            return;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] != s)
+                continue;
+            if (subs.length == 1) {
+                inboxes.remove(id);
+            } else {
+                Subscription[] _subs = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, _subs, 0, i);
+                System.arraycopy(subs, i + 1, _subs, i, _subs.length - i);
+                inboxes.put(id, _subs);
+            }
+            count--;
+            return;
+        }
+    }
+
+    /**
+     * @return the inboxes for the id of the inbox subject, which must still be matched against the rest
+     * of the subject with matches(), or null if there are none
+     */
+    Subscription[] get(CharSeq subject) {
+        return inboxes.get(id(subject));
+    }
+
+    /**
+     * @return the number of inbox subscriptions
+     */
+    int count() {
+        return count;
+    }
+
+    private static CharSeq id(CharSeq subject) {
+        int end = PREFIX.length;
+        while (end < subject.length() && subject.byteAt(end) != '.')
+            end++;
+        return (CharSeq) subject.subSequence(PREFIX.length, end);
+    }
+
+    /**
+     * @return true if the inbox matches the subject, which has the same id
+     */
+    static boolean matches(Subscription s, CharSeq subject) {
+        CharSeq pattern = s.subject;
+        // both are positioned after the id, at the end or at a '.'
+        int p = PREFIX.length, i = PREFIX.length;
+        while (p < pattern.length() && pattern.byteAt(p) != '.')
+            p++;
+        i += p - PREFIX.length;
+        while (true) {
+            if (p == pattern.length())
+                return i == subject.length();
+            if (i == subject.length())
+                return false;
+            p++;
+            i++;
+            int pend = indexOf(pattern, '.', p), iend = indexOf(subject, '.', i);
+            if (pend - p == 1 && pattern.byteAt(p) == '>')
+                return iend > i;
+            if (!(pend - p == 1 && pattern.byteAt(p) == '*')) {
+                if (pend - p != iend - i)
+                    return false;
+                for (int j = 0; j < pend - p; j++) {
+                    if (pattern.byteAt(p + j) != subject.byteAt(i + j))
+                        return false;
+                }
+            } else if (iend == i) {
+                return false; // an empty token
+            }
+            p = pend;
+            i = iend;
+        }
+    }
+
+    private static int indexOf(CharSeq s, char c, int from) {
+        while (from < s.length() && s.byteAt(from) != c)
+            from++;
+        return from;
+    }
+}
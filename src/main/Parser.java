@@ -0,0 +1,420 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+
+import java.io.IOException;
+
+/**
+ * incremental parser for the client protocol, modelled on the gnatsd parser. Bytes are consumed in
+ * whatever chunks the socket delivers, and each complete command is dispatched to the handler
+ * directly from the caller's buffer. Only a control line or payload split across buffers is copied,
+ * into scratch space owned by the parser, so any read boundary is handled.
+ *
+ * The CharSeq and payload range passed to the handler are only valid for the duration of the call.
+ */
+class Parser {
+    static final int MAX_CONTROL_LINE = 1024;
+
+    interface Handler {
+        /**
+         * @param hdrLength the bytes of the payload that are its header block, 0 for a PUB
+         */
+        void onPub(CharSeq subject, CharSeq reply, byte[] payload, int offset, int length, int hdrLength) throws IOException;
+        void onSub(CharSeq subject, CharSeq group, int ssid) throws IOException;
+        /**
+         * @param max the messages after which the subscription is removed, or 0 to remove it now
+         */
+        void onUnsub(int ssid, int max) throws IOException;
+        void onPing() throws IOException;
+        void onPong() throws IOException;
+        void onConnect(CharSeq options) throws IOException;
+        /**
+         * a command could not be processed, parsing continues with the next command
+         */
+        void onError(Exception e) throws IOException;
+    }
+
+    /**
+     * a malformed command that does not break the framing, reported to the client
+     */
+    static class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int OP_START = 0;
+    private static final int OP_P = 1;
+    private static final int OP_KEYWORD = 2;
+    private static final int OP_END_KEYWORD = 3;
+    private static final int ARG = 4;
+    private static final int MSG_PAYLOAD = 5;
+    private static final int MSG_END_R = 6;
+    private static final int MSG_END_N = 7;
+    private static final int SKIP_LINE = 8;
+
+    private static final int CMD_PUB = 1;
+    private static final int CMD_SUB = 2;
+    private static final int CMD_UNSUB = 3;
+    private static final int CMD_PING = 4;
+    private static final int CMD_PONG = 5;
+    private static final int CMD_CONNECT = 6;
+    private static final int CMD_HPUB = 7;
+
+    // the rest of each command once its leading bytes select it, in upper case
+    private static final byte[] UB = "UB".getBytes();
+    private static final byte[] PUB = "PUB".getBytes();
+    private static final byte[] NSUB = "NSUB".getBytes();
+    private static final byte[] ONNECT = "ONNECT".getBytes();
+    private static final byte[] B = "B".getBytes();
+    private static final byte[] NG = "NG".getBytes();
+
+    private static final int MAX_ARGS = 4;
+    private static final int RETAINED_PAYLOAD = 64 * 1024;
+
+    private final Handler handler;
+    private final int maxPayload;
+
+    private int state = OP_START;
+    private int cmd;
+    private byte[] keyword;
+    private int matched;
+    private int skipped;
+
+    // the control line, either in the caller's buffer or copied to scratch when it spans buffers
+    private int argStart;
+    private boolean argCopied;
+    private final byte[] scratch = new byte[MAX_CONTROL_LINE];
+    private int scratchLen;
+    private final int[] tokenStart = new int[MAX_ARGS];
+    private final int[] tokenLen = new int[MAX_ARGS];
+
+    // the PUB or HPUB in progress
+    private byte[] pubArgs;
+    private int subjectStart, subjectLen, replyStart, replyLen;
+    private int size;
+    private int hdrSize;
+    private byte[] payload;
+    private int payloadLen;
+
+    /**
+     * @param maxPayload the maximum PUB payload size, larger payloads fail the connection
+     */
+    Parser(Handler handler, int maxPayload) {
+        this.handler = handler;
+        this.maxPayload = maxPayload;
+    }
+
+    /**
+     * process the bytes, dispatching every complete command. A partial command is retained until the
+     * rest arrives in a later call.
+     *
+     * @throws IOException if the stream cannot be parsed further, and the connection should be closed
+     */
+    void parse(byte[] buf, int off, int len) throws IOException {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte b = buf[i];
+            switch (state) {
+                case OP_START:
+                    switch (b) {
+                        case 'P': case 'p': state = OP_P; break;
+                        case 'S': case 's': keyword(CMD_SUB, UB); break;
+                        case 'U': case 'u': keyword(CMD_UNSUB, NSUB); break;
+                        case 'C': case 'c': keyword(CMD_CONNECT, ONNECT); break;
+                        case 'H': case 'h': keyword(CMD_HPUB, PUB); break;
+                        case '\r': case '\n': break;
+                        default: i = unknown(i);
+                    }
+                    break;
+                case OP_P:
+                    switch (b) {
+                        case 'U': case 'u': keyword(CMD_PUB, B); break;
+                        case 'I': case 'i': keyword(CMD_PING, NG); break;
+                        case 'O': case 'o': keyword(CMD_PONG, NG); break;
+                        default: i = unknown(i);
+                    }
+                    break;
+                case OP_KEYWORD:
+                    if ((b & ~0x20) != keyword[matched]) {
+                        i = unknown(i);
+                    } else if (++matched == keyword.length) {
+                        state = OP_END_KEYWORD;
+                    }
+                    break;
+                case OP_END_KEYWORD:
+                    if (b == ' ' || b == '\t' || b == '\r') {
+                        beginArg(i + 1);
+                    } else if (b == '\n') {
+                        beginArg(i);
+                        i--;
+                    } else {
+                        i = unknown(i);
+                    }
+                    break;
+                case ARG: {
+                    int nl = indexOf(buf, i, end, (byte) '\n');
+                    if (nl < 0) {
+                        if (argCopied) {
+                            append(buf, i, end - i);
+                        } else {
+                            argCopied = true;
+                            scratchLen = 0;
+                            append(buf, argStart, end - argStart);
+                        }
+                        i = end;
+                        break;
+                    }
+                    if (argCopied) {
+                        append(buf, i, nl - i);
+                        processArg(scratch, 0, scratchLen);
+                    } else {
+                        if (nl - argStart > MAX_CONTROL_LINE)
+                            throw new IOException("line too long");
+                        processArg(buf, argStart, nl - argStart);
+                    }
+                    i = nl;
+                    break;
+                }
+                case MSG_PAYLOAD: {
+                    int available = end - i;
+                    if (payloadLen == 0 && available >= size) {
+                        // the common case, the whole payload is in the buffer
+                        publish(buf, i, size);
+                        i += size - 1;
+                        state = MSG_END_R;
+                        break;
+                    }
+                    if (payloadLen == 0) {
+                        retainPubArgs(buf);
+                        if (payload == null || payload.length < size)
+                            payload = new byte[Math.max(size, 1024)];
+                    }
+                    int n = Math.min(available, size - payloadLen);
+                    System.arraycopy(buf, i, payload, payloadLen, n);
+                    payloadLen += n;
+                    i += n - 1;
+                    if (payloadLen == size) {
+                        publish(payload, 0, size);
+                        if (payload.length > RETAINED_PAYLOAD)
+                            payload = null;
+                        state = MSG_END_R;
+                    }
+                    break;
+                }
+                case MSG_END_R:
+                    if (b == '\r') {
+                        state = MSG_END_N;
+                        break;
+                    }
+                    // tolerate a bare LF
+                    if (b != '\n')
+                        throw new IOException("expected CRLF after payload");
+                    state = OP_START;
+                    break;
+                case MSG_END_N:
+                    if (b != '\n')
+                        throw new IOException("expected CRLF after payload");
+                    state = OP_START;
+                    break;
+                case SKIP_LINE: {
+                    int nl = indexOf(buf, i, end, (byte) '\n');
+                    skipped += (nl < 0 ? end : nl) - i;
+                    if (skipped > MAX_CONTROL_LINE)
+                        throw new IOException("line too long");
+                    if (nl < 0) {
+                        i = end;
+                        break;
+                    }
+                    i = nl;
+                    state = OP_START;
+                    handler.onError(new ProtocolException("Unknown Protocol Operation"));
+                    break;
+                }
+            }
+        }
+        if (state == ARG && !argCopied) {
+            // the arguments start at the end of the buffer, continue them in scratch
+            argCopied = true;
+            scratchLen = 0;
+        } else if (state == MSG_PAYLOAD && payloadLen == 0) {
+            // the control line ends the buffer, which the caller reuses for the payload
+            retainPubArgs(buf);
+        }
+    }
+
+    private void keyword(int cmd, byte[] keyword) {
+        this.cmd = cmd;
+        this.keyword = keyword;
+        this.matched = 0;
+        this.state = OP_KEYWORD;
+    }
+
+    /**
+     * @return the index to continue from, the unrecognized byte is skipped with the rest of the line
+     */
+    private int unknown(int i) {
+        state = SKIP_LINE;
+        skipped = 0;
+        return i - 1;
+    }
+
+    private void beginArg(int start) {
+        state = ARG;
+        argStart = start;
+        argCopied = false;
+    }
+
+    private void append(byte[] buf, int off, int len) throws IOException {
+        if (scratchLen + len > MAX_CONTROL_LINE)
+            throw new IOException("line too long");
+        System.arraycopy(buf, off, scratch, scratchLen, len);
+        scratchLen += len;
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private void processArg(byte[] a, int off, int len) throws IOException {
+        state = OP_START;
+        int n = tokenize(a, off, len);
+        if (cmd == CMD_PUB || cmd == CMD_HPUB) {
+            // HPUB has the header size ahead of the total size
+            int sizes = cmd == CMD_HPUB ? 2 : 1;
+            if (n != sizes + 1 && n != sizes + 2)
+                throw new IOException(cmd == CMD_HPUB ? "invalid HPUB arguments" : "invalid PUB arguments");
+            size = parseInt(a, tokenStart[n - 1], tokenLen[n - 1]);
+            hdrSize = sizes == 2 ? parseInt(a, tokenStart[n - 2], tokenLen[n - 2]) : 0;
+            if (size < 0 || hdrSize < 0 || hdrSize > size)
+                throw new IOException("invalid message size");
+            if (size > maxPayload)
+                throw new IOException("maximum payload exceeded");
+            pubArgs = a;
+            subjectStart = tokenStart[0];
+            subjectLen = tokenLen[0];
+            replyStart = tokenStart[1];
+            replyLen = n == sizes + 2 ? tokenLen[1] : 0;
+            payloadLen = 0;
+            state = MSG_PAYLOAD;
+            if (size == 0) {
+                publish(a, 0, 0);
+                state = MSG_END_R;
+            }
+            return;
+        }
+        try {
+            switch (cmd) {
+                case CMD_SUB: {
+                    if (n != 2 && n != 3)
+                        throw new ProtocolException("Invalid Subscription");
+                    int ssid = parseInt(a, tokenStart[n - 1], tokenLen[n - 1]);
+                    if (ssid < 0)
+                        throw new ProtocolException("Invalid Subscription");
+                    CharSeq group = n == 3 ? new CharSeq(a, tokenStart[1], tokenLen[1]) : CharSeq.EMPTY;
+                    handler.onSub(new CharSeq(a, tokenStart[0], tokenLen[0]), group, ssid);
+                    break;
+                }
+                case CMD_UNSUB: {
+                    int ssid = n == 1 || n == 2 ? parseInt(a, tokenStart[0], tokenLen[0]) : -1;
+                    int max = n == 2 ? parseInt(a, tokenStart[1], tokenLen[1]) : 0;
+                    if (ssid < 0 || max < 0)
+                        throw new ProtocolException("Invalid Unsubscribe");
+                    handler.onUnsub(ssid, max);
+                    break;
+                }
+                case CMD_PING:
+                    handler.onPing();
+                    break;
+                case CMD_PONG:
+                    handler.onPong();
+                    break;
+                case CMD_CONNECT:
+                    if (n == 0)
+                        throw new ProtocolException("Invalid Connect");
+                    // the options are the rest of the line, which may contain spaces
+                    int start = tokenStart[0];
+                    handler.onConnect(new CharSeq(a, start, trimmedEnd(a, off, len) - start));
+                    break;
+            }
+        } catch (RuntimeException e) {
+            handler.onError(e);
+        }
+    }
+
+    private void publish(byte[] buf, int off, int len) throws IOException {
+        CharSeq subject = new CharSeq(pubArgs, subjectStart, subjectLen);
+        CharSeq reply = replyLen > 0 ? new CharSeq(pubArgs, replyStart, replyLen) : CharSeq.EMPTY;
+        try {
+            handler.onPub(subject, reply, buf, off, len, hdrSize);
+        } catch (RuntimeException e) {
+            handler.onError(e);
+        }
+    }
+
+    /**
+     * the payload is not in this buffer, so move the PUB arguments out of it before it is reused
+     */
+    private void retainPubArgs(byte[] buf) {
+        if (pubArgs != buf)
+            return;
+        System.arraycopy(buf, subjectStart, scratch, 0, subjectLen);
+        System.arraycopy(buf, replyStart, scratch, subjectLen, replyLen);
+        subjectStart = 0;
+        replyStart = subjectLen;
+        pubArgs = scratch;
+    }
+
+    /**
+     * record the positions of the whitespace separated tokens
+     * @return the number of tokens
+     */
+    private int tokenize(byte[] a, int off, int len) throws IOException {
+        int n = 0;
+        int end = trimmedEnd(a, off, len);
+        for (int i = off; i < end; ) {
+            while (i < end && (a[i] == ' ' || a[i] == '\t'))
+                i++;
+            if (i == end)
+                break;
+            int start = i;
+            while (i < end && a[i] != ' ' && a[i] != '\t')
+                i++;
+            if (n < MAX_ARGS) {
+                tokenStart[n] = start;
+                tokenLen[n] = i - start;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    private static int trimmedEnd(byte[] a, int off, int len) {
+        int end = off + len;
+        while (end > off && (a[end - 1] == '\r' || a[end - 1] == ' ' || a[end - 1] == '\t'))
+            end--;
+        return end;
+    }
+
+    /**
+     * @return the non-negative decimal value, or -1 if not a valid number
+     */
+    static int parseInt(byte[] a, int off, int len) {
+        if (len == 0 || len > 9)
+            return -1;
+        int v = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            int d = a[i] - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+}
@@ -1,26 +1,33 @@
 package com.robaho.jnatsd;
 
+import com.robaho.jnatsd.util.BufferPool;
 import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.CoarseClock;
 import com.robaho.jnatsd.util.JSON;
 import com.robaho.jnatsd.util.RingBuffer;
+import com.robaho.jnatsd.util.VirtualThreads;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Server {
     private int port;
-    private Thread listener, handler, flusher;
+    private Thread[] listeners;
     private Set<Connection> connections = new CopyOnWriteArraySet<>();
     Logger logger = Logger.getLogger("server");
 
@@ -30,53 +37,480 @@ public class Server {
         this.port = port;
     }
 
-    private volatile Subscription[] subs = new Subscription[0];
-    private volatile Map<CharSeq, SubscriptionMatch> cache = new ConcurrentHashMap();
+    public int getPort() {
+        return port;
+    }
+
+    private final Sublist sublist = new Sublist();
+    /** serializes subscription changes, so the cache is patched in the same order as the sublist */
+    private final Object subscriptionLock = new Object();
+    private final CoarseClock clock = new CoarseClock(1, TimeUnit.MILLISECONDS);
+    private int maxCacheSize = 64*1024;
+    private long maxCacheIdle = TimeUnit.MINUTES.toMillis(1);
+    private SubscriptionCache cache;
+    /** incremented on every subscription change, so a match built concurrently with a change is not cached */
+    private final AtomicLong generation = new AtomicLong();
+    private final InboxIndex inboxes = new InboxIndex();
+    /** subscriptions in the sublist that may match an inbox subject. While there are none, replies bypass the sublist and the cache */
+    private volatile int sublistInboxMatches;
+    /** the header block of the reply to a request that reached no subscriber, see noResponders() */
+    private static final byte[] NO_RESPONDERS = "NATS/1.0 503\r\n\r\n".getBytes();
+    /** message buffers, with up to 64MB retained when idle */
+    private final BufferPool bufferPool = new BufferPool(maxMsgSize, 64L*1024*1024);
+    private int gatherThreshold = 16*1024;
+    private long maxPending = 64L*1024*1024;
+    private int maxPendingMsgs = 64*1024;
+    private long writeDeadline = TimeUnit.SECONDS.toMillis(2);
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private int deliveryQueue;
+    private WriteDeadlineMonitor deadlineMonitor;
+    private final LongAdder slowConsumers = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private QueuePolicy queuePolicy = QueuePolicy.ROUND_ROBIN;
+    private Transport transport = Transport.THREADED;
+    private int ioLoops = Runtime.getRuntime().availableProcessors();
+    private EventLoop[] loops;
     private AtomicInteger clientIDs = new AtomicInteger(0);
     private boolean tlsRequired;
+    private int handshakeThreads = Math.max(16, 2*Runtime.getRuntime().availableProcessors()); // mostly waiting on clients
+    private long handshakeTimeout = TimeUnit.SECONDS.toMillis(5);
+    private Handshaker handshaker;
+    private int acceptors = 1;
+    private int backlog = 256;
+    private int receiveBufferSize; // 0 for the system default
+    private int sendBufferSize;
+    private boolean tcpNoDelay = true;
     private volatile boolean done;
 
-    private final AtomicBoolean flushPermit = new AtomicBoolean();
+    private int nFlushers = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+    private Flusher[] flushers;
+    private String flushPolicy = "delay:500";
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder writeBytes = new LongAdder();
 
     public boolean isTLSRequired() {
         return tlsRequired;
     }
 
+    public void setTLSRequired(boolean tlsRequired) {
+        this.tlsRequired = tlsRequired;
+    }
+
+    /**
+     * @param handshakeThreads the number of threads sending INFO and performing TLS handshakes for new
+     *                         connections
+     */
+    public void setHandshakeThreads(int handshakeThreads) {
+        this.handshakeThreads = handshakeThreads;
+    }
+
+    /**
+     * @param handshakeTimeout the milliseconds a new connection has to complete its handshake and send
+     *                         CONNECT, beyond which it is closed
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * @param acceptors the number of threads accepting connections. Each binds its own socket with
+     *                  SO_REUSEPORT, so the kernel spreads connections across them, or where that is not
+     *                  supported they share a single socket.
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * @param backlog the maximum queued connections not yet accepted, for each acceptor's socket. The
+     *                system may limit it further, on linux to net.core.somaxconn.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @param receiveBufferSize the SO_RCVBUF of accepted sockets, or 0 for the system default. It is set
+     *                          on the listening socket, so it applies from the handshake's window.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @param sendBufferSize the SO_SNDBUF of accepted sockets, or 0 for the system default
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return the number of connections closed for not completing the handshake and CONNECT in time
+     */
+    public long getHandshakeTimeouts() {
+        return handshaker.getTimeouts();
+    }
+
     public int getMaxMsgSize() {
         return maxMsgSize;
     }
 
+    /**
+     * @param maxCacheSize the maximum number of subjects in the subscription match cache
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * @param maxCacheIdle subjects unused for longer than this many milliseconds are purged from the cache
+     */
+    public void setMaxCacheIdle(long maxCacheIdle) {
+        this.maxCacheIdle = maxCacheIdle;
+    }
+
+    /**
+     * @param gatherThreshold payloads of at least this many bytes are written to subscribers from the
+     *                        message's buffer with a gathering write, rather than copied for each subscriber
+     */
+    public void setGatherThreshold(int gatherThreshold) {
+        this.gatherThreshold = gatherThreshold;
+    }
+
+    public int getGatherThreshold() {
+        return gatherThreshold;
+    }
+
+    /**
+     * @param maxPending the maximum bytes buffered for a connection but not yet accepted by its socket,
+     *                   beyond which it is a slow consumer
+     */
+    public void setMaxPending(long maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    public long getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @param maxPendingMsgs the maximum messages buffered for a connection but not yet accepted by its
+     *                       socket, beyond which it is a slow consumer
+     */
+    public void setMaxPendingMsgs(int maxPendingMsgs) {
+        this.maxPendingMsgs = maxPendingMsgs;
+    }
+
+    public int getMaxPendingMsgs() {
+        return maxPendingMsgs;
+    }
+
+    /**
+     * @param writeDeadline the milliseconds a connection's socket may take to accept its pending output,
+     *                      beyond which it is a slow consumer
+     */
+    public void setWriteDeadline(long writeDeadline) {
+        this.writeDeadline = writeDeadline;
+    }
+
+    public long getWriteDeadline() {
+        return writeDeadline;
+    }
+
+    /**
+     * what happens to a slow consumer, a connection exceeding the pending limits or the write deadline.
+     * Either way it is sent -ERR 'Slow Consumer', as far as its socket accepts it.
+     */
+    public enum SlowConsumerPolicy {
+        /** the connection is closed, discarding its pending output */
+        DISCONNECT,
+        /** messages to the connection are dropped until its pending output is written */
+        DROP
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * @param deliveryQueue if greater than 0, messages to a connection are queued, up to this many rounded
+     *                      up to a power of two, and written to its output by its flusher, rather than by
+     *                      the publisher's thread
+     */
+    public void setDeliveryQueue(int deliveryQueue) {
+        this.deliveryQueue = deliveryQueue;
+    }
+
+    public int getDeliveryQueue() {
+        return deliveryQueue;
+    }
+
+    void slowConsumer() {
+        slowConsumers.increment();
+    }
+
+    void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    /**
+     * @return the number of times a connection was found to be a slow consumer
+     */
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    /**
+     * @return the number of messages dropped for slow consumers
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * how a queue group member is selected for each message
+     */
+    public enum QueuePolicy {
+        /** members receive messages in rotation */
+        ROUND_ROBIN,
+        /** the member with the smallest outbound backlog receives the message, rotating between equals */
+        LEAST_PENDING
+    }
+
+    public void setQueuePolicy(QueuePolicy queuePolicy) {
+        this.queuePolicy = queuePolicy;
+    }
+
+    /**
+     * how connections are read and written
+     */
+    public enum Transport {
+        /** a dedicated reader and writer platform thread per connection, with blocking sockets */
+        THREADED,
+        /** non-blocking sockets shared across a fixed number of selector event loops */
+        NIO,
+        /** a reader and a writer virtual thread per connection, with blocking sockets. Requires Java 21, otherwise THREADED is used */
+        VIRTUAL
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @param ioLoops the number of event loops for the nio transport, defaults to the number of cores
+     */
+    public void setIOLoops(int ioLoops) {
+        this.ioLoops = ioLoops;
+    }
+
+    public long getCacheHits() {
+        return cache.hits();
+    }
+
+    public long getCacheMisses() {
+        return cache.misses();
+    }
+
+    public long getCacheEvictions() {
+        return cache.evictions();
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the fraction of message buffers taken from the pool rather than allocated
+     */
+    public double getBufferPoolHitRate() {
+        return bufferPool.hitRate();
+    }
+
+    /**
+     * @return the bytes of message buffers held by the pool, both idle and in use
+     */
+    public long getBufferPoolFootprint() {
+        return bufferPool.footprint();
+    }
+
+    /**
+     * @return the current time in milliseconds, from a clock with millisecond resolution
+     */
+    long now() {
+        return clock.now();
+    }
+
+    /**
+     * @return an unstarted thread to run connection work that may block, virtual if using the virtual transport
+     */
+    Thread newConnectionThread(Runnable r, String name) {
+        if (transport == Transport.VIRTUAL)
+            return VirtualThreads.newThread(r, name);
+        return new Thread(r, name);
+    }
+
+    /**
+     * @return true if using the virtual transport, where each connection's writer flushes its own output
+     */
+    boolean isVirtual() {
+        return transport == Transport.VIRTUAL;
+    }
+
+    /**
+     * @param flushers the number of flusher threads, each deciding when a shard of the connections is
+     * due to be flushed. Not used with the virtual transport, where each connection's writer does this.
+     */
+    public void setFlushers(int flushers) {
+        this.nFlushers = flushers;
+    }
+
+    /**
+     * @param flushPolicy the default flush policy for connections, see FlushPolicy for the format
+     * @throws IllegalArgumentException if the policy is not valid
+     */
+    public void setFlushPolicy(String flushPolicy) {
+        FlushPolicy.parse(flushPolicy);
+        this.flushPolicy = flushPolicy;
+    }
+
+    public String getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    void recordWrites(long writes, long bytes) {
+        writeCalls.add(writes);
+        writeBytes.add(bytes);
+    }
+
+    /**
+     * @return the number of socket writes to connections
+     */
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    /**
+     * @return the average bytes per socket write, to observe the effect of the flush policy
+     */
+    public double getAverageBytesPerWrite() {
+        long calls = writeCalls.sum();
+        return calls == 0 ? 0 : (double) writeBytes.sum() / calls;
+    }
+
     public void needsFlush(Connection connection) {
-        if(flushPermit.compareAndSet(false,true))
-            LockSupport.unpark(flusher);
+        if (transport == Transport.VIRTUAL) {
+            connection.scheduleFlush();
+            return;
+        }
+        Flusher[] _flushers = flushers;
+        if(_flushers!=null)
+            _flushers[Math.floorMod(connection.getClientID(), _flushers.length)].schedule(connection);
     }
 
-    private static class SubscriptionMatch {
-        long lastUsed; // for LRU cache purge
-        CharSeq subject;
-        Subscription[] subs;
-        Map<CharSeq, List<Subscription>> groups = new HashMap<>();
+    void deliver(Connection connection) {
+        if (transport == Transport.VIRTUAL) {
+            connection.scheduleDelivery();
+            return;
+        }
+        Flusher[] _flushers = flushers;
+        if(_flushers!=null)
+            _flushers[Math.floorMod(connection.getClientID(), _flushers.length)].deliver(connection);
     }
 
-    private class Listener implements Runnable {
-        public void run() {
-            ServerSocketChannel socket = null;
-            try {
-                socket = ServerSocketChannel.open();
-                socket.bind(new InetSocketAddress(port),256);
-            } catch (IOException e) {
-                logger.log(Level.SEVERE,"unable to open server socket",e);
-                return;
+    /** SO_REUSEPORT was added in Java 9, so it is located reflectively, and is null if not available */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * open the sockets for the acceptors, one each if SO_REUSEPORT is supported, otherwise one shared
+     */
+    private ServerSocketChannel[] openServerSockets() throws IOException {
+        ServerSocketChannel[] sockets = new ServerSocketChannel[acceptors];
+        boolean reusePort = false;
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                if (i > 0 && !reusePort) {
+                    sockets[i] = sockets[0];
+                    continue;
+                }
+                ServerSocketChannel socket = ServerSocketChannel.open();
+                sockets[i] = socket;
+                if (acceptors > 1 && i == 0) {
+                    reusePort = SO_REUSEPORT != null && socket.supportedOptions().contains(SO_REUSEPORT);
+                    if (!reusePort)
+                        logger.warning("SO_REUSEPORT is not supported, the acceptors share a socket");
+                }
+                if (reusePort)
+                    socket.setOption(SO_REUSEPORT, true);
+                if (receiveBufferSize > 0)
+                    socket.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                socket.bind(new InetSocketAddress(port), backlog);
             }
+        } catch (IOException e) {
+            for (ServerSocketChannel socket : sockets) {
+                if (socket != null)
+                    socket.close();
+            }
+            throw e;
+        }
+        return sockets;
+    }
+
+    private class Listener implements Runnable {
+        private final ServerSocketChannel socket;
+        private int nextLoop;
+
+        Listener(ServerSocketChannel socket, int index) {
+            this.socket = socket;
+            this.nextLoop = index;
+        }
 
+        public void run() {
             while (!done) {
                 try {
-                    Socket s = socket.accept().socket();
-                    s.getChannel().configureBlocking(true);
-                    logger.info("Connection from " + s.getRemoteSocketAddress());
-                    Connection c = new Connection(Server.this, s);
-                    connections.add(c);
-                    c.processConnection();
+                    SocketChannel ch = socket.accept();
+                    EventLoop loop = null;
+                    if (loops != null) {
+                        ch.configureBlocking(false);
+                        loop = loops[Math.floorMod(nextLoop++, loops.length)];
+                    } else {
+                        ch.configureBlocking(true);
+                    }
+                    logger.info("Connection from " + ch.socket().getRemoteSocketAddress());
+                    // a slow client must not hold up accepting the others
+                    handshaker.submit(ch, loop);
+                } catch (ClosedChannelException e) {
+                    // stopped, possibly by another acceptor sharing the socket
+                    break;
                 } catch (IOException e) {
                     logger.log(Level.WARNING,"acceptor failed",e);
                 }
@@ -88,32 +522,60 @@ public class Server {
 
         logger.setLevel(Level.WARNING);
 
-        listener = new Thread(new Listener(),"Listener");
-        listener.start();
+        clock.start();
+        cache = new SubscriptionCache(clock, maxCacheSize, maxCacheIdle);
 
-        flusher = new Thread(new Flusher(),"Flusher");
-        flusher.start();
-    }
+        if (transport == Transport.VIRTUAL && !VirtualThreads.isSupported()) {
+            logger.warning("virtual threads are not supported by this runtime, using platform threads");
+            transport = Transport.THREADED;
+        }
 
-    private class Flusher implements Runnable {
-        @Override
-        public void run() {
-            while(!done) {
-                boolean delayPark = false;
-                for(Connection c : connections) {
-                    if(!c.maybeFlush()) {
-                        delayPark=true;
-                    }
-                }
-                if(delayPark) {
-                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(500));
-                } else {
-                    if (flushPermit.compareAndSet(true, false))
-                        continue;
-                    LockSupport.park();
-                }
+        if (transport == Transport.NIO) {
+            loops = new EventLoop[ioLoops];
+            for (int i = 0; i < ioLoops; i++) {
+                loops[i] = new EventLoop(this, i);
+                loops[i].start();
             }
         }
+
+        // with the virtual transport, each connection's writer also decides when its output is flushed
+        if (transport != Transport.VIRTUAL) {
+            flushers = new Flusher[nFlushers];
+            for (int i = 0; i < nFlushers; i++) {
+                flushers[i] = new Flusher(i);
+                flushers[i].start();
+            }
+        }
+
+        deadlineMonitor = new WriteDeadlineMonitor(this, TimeUnit.MILLISECONDS.toNanos(writeDeadline));
+        deadlineMonitor.start();
+
+        handshaker = new Handshaker(this, handshakeThreads, handshakeTimeout);
+
+        ServerSocketChannel[] sockets;
+        try {
+            sockets = openServerSockets();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE,"unable to open server socket",e);
+            sockets = new ServerSocketChannel[0];
+        }
+        listeners = new Thread[sockets.length];
+        for (int i = 0; i < sockets.length; i++) {
+            listeners[i] = new Thread(new Listener(sockets[i], i), sockets.length == 1 ? "Listener" : "Listener-" + i);
+            listeners[i].start();
+        }
+    }
+
+    /**
+     * add a connection once established, and start processing it
+     */
+    void addConnection(Connection c) {
+        connections.add(c);
+        c.processConnection();
+    }
+
+    Iterable<Connection> getConnections() {
+        return connections;
     }
 
     public int getNextClientID() {
@@ -129,21 +591,14 @@ public class Server {
         try {
 //        System.out.println("received message "+m);
 
-            Map<CharSeq, SubscriptionMatch> _cache = cache;
-
-            SubscriptionMatch cached = _cache.get(m.subject);
-            if (cached != null) {
-                routeToMatch(m, cached);
-                return;
-            }
-
-            cached = buildSubscriptionMatch(m.subject);
-            SubscriptionMatch old = _cache.putIfAbsent(cached.subject, cached);
-            if (old != null)
-                cached = old;
-            routeToMatch(m, cached);
+            boolean inbox = InboxIndex.isInboxSubject(m.subject);
+            boolean delivered = inbox && routeToInboxes(m);
+            if (!inbox || sublistInboxMatches != 0)
+                delivered |= routeToMatch(m, match(m.subject));
+            if (!delivered && m.reply.length() != 0)
+                noResponders(m);
         } finally {
-            long now = System.currentTimeMillis();
+            long now = clock.now();
             long time = now-m.when;
             if(time>2000 && now-lastSlowWarning>5000) {
                 logger.log(Level.WARNING,"too long "+time+" ms to process message");
@@ -152,104 +607,178 @@ public class Server {
         }
     }
 
-    private SubscriptionMatch buildSubscriptionMatch(CharSeq subject) {
-        SubscriptionMatch match = new SubscriptionMatch();
+    /**
+     * @return the number of changes to the subscriptions that patched the cache
+     */
+    long getSubscriptionChanges() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cached match for the subject, building and caching it on a miss
+     */
+    private SubscriptionMatch match(CharSeq subject) {
+        SubscriptionMatch cached = cache.get(subject);
+        if (cached != null)
+            return cached;
 
-        match.subject = subject;
+        long gen = generation.get();
+        // the message's subject is in a pooled buffer, so the cache needs its own copy
+        cached = buildSubscriptionMatch(subject.dup());
+        SubscriptionMatch old = cache.putIfAbsent(cached);
+        if (old != null) {
+            cached = old;
+        } else if (generation.get() != gen) {
+            // a subscription changed while building, and may have patched the cache before this entry was added
+            cache.remove(cached);
+        }
+        return cached;
+    }
 
+    private SubscriptionMatch buildSubscriptionMatch(CharSeq subject) {
+        List<Subscription> psubs = new ArrayList<>();
         Map<CharSeq, List<Subscription>> groups = new HashMap<>();
 
-        Subscription[] _subs = subs;
+        sublist.match(subject, psubs, groups);
 
-        Set<Subscription> set = new HashSet();
+        return new SubscriptionMatch(subject, psubs, groups);
+    }
 
-        // TODO rather than linear search, since the subscriptions are sorted, a log(n) search
-        // can be used to find the next match
-        // TODO maybe store all connections for the same 'subscription' in a list by subscription
-        // to reduce the search comparisons, gets more complex with groups though
+    /**
+     * @return true if the message was delivered to any subscription
+     */
+    private boolean routeToMatch(InMessage msg,SubscriptionMatch match) {
+        final Connection from = msg.connection;
+        boolean delivered = false;
 
-        Subscription s = new Subscription(null, 0, match.subject, CharSeq.EMPTY);
-        for (int i = 0; i < _subs.length; i++) {
-            Subscription sub = _subs[i];
-            if (!sub.matches(s)) {
-                continue;
-            }
-            if (!sub.group.equals(CharSeq.EMPTY)) {
-                List<Subscription> gsubs = groups.get(sub.group);
-                if (gsubs == null) {
-                    gsubs = new ArrayList<>();
-                    groups.put(sub.group, gsubs);
-                }
-                gsubs.add(sub);
+        for (SubscriptionMatch.Recipient r : match.subs) {
+            if(r.sub.connection==from && from.isEcho())
                 continue;
-            } else {
-                set.add(sub);
-            }
+            if(!r.sub.claim())
+                continue; // expired, and being removed by the publisher that reached the maximum
+            r.sub.connection.sendMessage(r, msg);
+            delivered = true;
+            if(r.sub.isExpired())
+                removeSubscription(r.sub);
         }
 
-        match.groups = groups;
-        match.subs = set.toArray(new Subscription[set.size()]);
-
-        return match;
+        final boolean leastPending = queuePolicy == QueuePolicy.LEAST_PENDING;
+        for (SubscriptionMatch.QueueGroup group : match.groups) {
+            SubscriptionMatch.Recipient gr = claim(group, group.select(leastPending));
+            if(gr==null)
+                continue;
+            gr.sub.connection.sendMessage(gr, msg);
+            delivered = true;
+            if(gr.sub.isExpired())
+                removeSubscription(gr.sub);
+        }
+        return delivered;
     }
 
-    private void routeToMatch(InMessage msg,SubscriptionMatch match) {
-        match.lastUsed = System.currentTimeMillis();
-
+    /**
+     * deliver a reply to the inbox subscriptions for its subject, encoding the MSG prefix for each, as
+     * the subject is not seen again
+     * @return true if the message was delivered to any inbox
+     */
+    private boolean routeToInboxes(InMessage msg) {
+        Subscription[] subs = inboxes.get(msg.subject);
+        if (subs == null)
+            return false;
         final Connection from = msg.connection;
-
-        for (Subscription s : match.subs) {
+        boolean delivered = false;
+        for (Subscription s : subs) {
+            if(!InboxIndex.matches(s, msg.subject))
+                continue;
             if(s.connection==from && from.isEcho())
                 continue;
-            s.connection.sendMessage(s, msg);
+            if(!s.claim())
+                continue;
+            s.connection.sendMessage(new SubscriptionMatch.Recipient(msg.subject, s), msg);
+            delivered = true;
+            if(s.isExpired())
+                removeSubscription(s);
         }
+        return delivered;
+    }
 
-        if(match.groups.isEmpty())
+    /**
+     * answer a request that reached no subscriber with a 503 status to its reply subject, on the
+     * requester's subscription for it, so the requester fails at once rather than waiting out its
+     * timeout. Only for a requester that asked for this in its CONNECT options.
+     */
+    private void noResponders(InMessage request) {
+        final Connection from = request.connection;
+        if(!from.isNoResponders())
+            return;
+        Subscription s = from.subscriptionFor(request.reply);
+        if(s==null || !s.claim())
             return;
+        InMessage status = InMessage.copyOf(from,request.reply,CharSeq.EMPTY,NO_RESPONDERS,0,NO_RESPONDERS.length,NO_RESPONDERS.length,request.when,bufferPool);
+        try {
+            from.sendMessage(new SubscriptionMatch.Recipient(request.reply, s), status);
+        } finally {
+            status.release();
+        }
+        if(s.isExpired())
+            removeSubscription(s);
+    }
 
-        for (Map.Entry<CharSeq, List<Subscription>> group : match.groups.entrySet()) {
-            List<Subscription> subs = group.getValue();
-            Subscription gs = subs.get((int) System.currentTimeMillis() % subs.size());
-            gs.connection.sendMessage(gs, msg);
+    /**
+     * @return the selected member if it can receive the message, otherwise the first that can, so an
+     * expired member does not lose the group the message
+     */
+    private static SubscriptionMatch.Recipient claim(SubscriptionMatch.QueueGroup group,SubscriptionMatch.Recipient selected) {
+        if(selected.sub.claim())
+            return selected;
+        for (SubscriptionMatch.Recipient r : group.members) {
+            if(r!=selected && r.sub.claim())
+                return r;
         }
+        return null;
     }
 
     public void stop() throws InterruptedException {
         done=true;
 
-        listener.interrupt();
-        listener.join();
-        handler.interrupt();
-        handler.join();
-        flusher.interrupt();
-        flusher.join();
+        for (Thread listener : listeners) {
+            listener.interrupt();
+            listener.join();
+        }
+        handshaker.stop();
+        if (flushers != null) {
+            for (Flusher f : flushers)
+                f.stop();
+        }
+        deadlineMonitor.stop();
+        if (loops != null) {
+            for (EventLoop loop : loops)
+                loop.stop();
+        }
+        clock.stop();
     }
 
     public void waitTillDone() throws InterruptedException {
-        listener.join();
+        for (Thread listener : listeners)
+            listener.join();
     }
 
     public void closeConnection(Connection connection) {
-        synchronized (connections) {
-            if(!connections.remove(connection))
-                return;
-            ArrayList<Subscription> copy = new ArrayList<>();
-            for (Subscription s : subs) {
-                if (s.connection != connection) {
-                    copy.add(s);
-                }
-            }
-            subs = copy.toArray(new Subscription[copy.size()]);
-            cache = new ConcurrentHashMap<>();
-        }
+        if(!connections.remove(connection))
+            return;
+        removeSubscriptions(connection);
         // call connection.close() from background thread since, to
         // avoid deadlock with reader/writer join()
-        ForkJoinPool.commonPool().execute(new Runnable() {
-            @Override
-            public void run() {
-                connection.close();
-            }
-        });
+        if (transport == Transport.VIRTUAL) {
+            // close blocks on the final flush and the reader join, so don't tie up a pool thread
+            newConnectionThread(connection::close, "Close(" + connection.getRemote() + ")").start();
+        } else {
+            ForkJoinPool.commonPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            });
+        }
         logger.info("connection terminated " + connection.getRemote());
     }
 
@@ -261,35 +790,203 @@ public class Server {
     }
 
     public void addSubscription(Subscription toAdd) {
+        synchronized (subscriptionLock) {
+            if (toAdd.connection.unsubscribed) {
+                toAdd.release();
+                return;
+            }
+            Subscription old = toAdd.connection.subscriptions.put(toAdd.ssid, toAdd);
+            if (old != null) {
+                remove(Collections.singletonList(old));
+                old.release();
+            }
+            insert(Collections.singletonList(toAdd));
+        }
+    }
 
-        synchronized (connections) {
-            ArrayList<Subscription> copy = new ArrayList<>();
-            for (Subscription s : subs) {
-                if (s.connection == toAdd.connection && s.ssid == toAdd.ssid) {
-                    continue;
-                } else {
-                    copy.add(s);
-                }
+    /**
+     * add all of the subscriptions for a connection, replacing any with the same ssid. The
+     * subscriptions become visible to routing in a single change. If the connection has been closed
+     * they are released instead.
+     */
+    public void addSubscriptions(Connection connection, Collection<Subscription> toAdd) {
+        synchronized (subscriptionLock) {
+            if (connection.unsubscribed) {
+                for (Subscription s : toAdd)
+                    s.release();
+                return;
+            }
+            List<Subscription> replaced = new ArrayList<>();
+            for (Subscription s : toAdd) {
+                Subscription old = connection.subscriptions.put(s.ssid, s);
+                if (old != null)
+                    replaced.add(old);
             }
-            copy.add(toAdd);
-            subs = copy.toArray(new Subscription[copy.size()]);
-            cache = new ConcurrentHashMap<>();
+            if (!replaced.isEmpty()) {
+                remove(replaced);
+                for (Subscription s : replaced)
+                    s.release();
+            }
+            insert(toAdd);
         }
     }
 
-    public void removeSubscription(Subscription toRemove) {
-        synchronized (connections) {
-            ArrayList<Subscription> copy = new ArrayList<>();
-            for (Subscription s : subs) {
-                if (s.connection == toRemove.connection && s.ssid == toRemove.ssid) {
-                    continue;
-                } else {
-                    copy.add(s);
-                }
+    public void removeSubscription(Connection connection, int ssid) {
+        synchronized (subscriptionLock) {
+            Subscription s = connection.subscriptions.remove(ssid);
+            if (s == null)
+                return;
+            remove(Collections.singletonList(s));
+            s.release();
+        }
+    }
+
+    /**
+     * remove the subscription once it has received the maximum messages, or immediately if it already
+     * has. The client may reuse the ssid, so it is removed only if still the same subscription.
+     */
+    public void autoUnsubscribe(Connection connection, int ssid, long max) {
+        Subscription s = connection.subscriptions.get(ssid);
+        if (s == null)
+            return;
+        s.max = max;
+        if (s.isExpired())
+            removeSubscription(s);
+    }
+
+    /**
+     * remove the subscription, if it has not been removed or replaced. The sublist and the cached
+     * matches for its subject are patched, as for any unsubscribe.
+     */
+    private void removeSubscription(Subscription s) {
+        synchronized (subscriptionLock) {
+            if (!s.connection.subscriptions.remove(s.ssid, s))
+                return;
+            remove(Collections.singletonList(s));
+            s.release();
+        }
+    }
+
+    /**
+     * remove all of the connection's subscriptions, in a single change, as it is closed. Subscriptions
+     * its reader adds afterwards are released rather than added.
+     */
+    public void removeSubscriptions(Connection connection) {
+        synchronized (subscriptionLock) {
+            connection.unsubscribed = true;
+            List<Subscription> toRemove = new ArrayList<>(connection.subscriptions.values());
+            connection.subscriptions.clear();
+            remove(toRemove);
+            for (Subscription s : toRemove)
+                s.release();
+        }
+    }
+
+    /**
+     * insert the subscriptions, inboxes into the inbox index and the rest into the sublist, patching
+     * the cache. Must be called holding the subscription lock.
+     */
+    private void insert(Collection<Subscription> subs) {
+        List<Subscription> general = new ArrayList<>(subs.size());
+        int inboxMatches = 0;
+        for (Subscription s : subs) {
+            if (InboxIndex.isInbox(s)) {
+                inboxes.add(s);
+                continue;
+            }
+            general.add(s);
+            if (InboxIndex.mayMatchInbox(s))
+                inboxMatches++;
+        }
+        if (general.isEmpty())
+            return;
+        sublist.insertAll(general);
+        cacheAdd(general);
+        if (inboxMatches > 0)
+            sublistInboxMatches += inboxMatches;
+    }
+
+    /**
+     * remove the subscriptions inserted by insert(). Must be called holding the subscription lock.
+     */
+    private void remove(Collection<Subscription> subs) {
+        List<Subscription> general = new ArrayList<>(subs.size());
+        int inboxMatches = 0;
+        for (Subscription s : subs) {
+            if (InboxIndex.isInbox(s)) {
+                inboxes.remove(s);
+                continue;
+            }
+            general.add(s);
+            if (InboxIndex.mayMatchInbox(s))
+                inboxMatches++;
+        }
+        if (general.isEmpty())
+            return;
+        sublist.removeAll(general);
+        cacheRemove(general);
+        if (inboxMatches > 0)
+            sublistInboxMatches -= inboxMatches;
+    }
+
+    /*
+     * the cache is patched rather than flushed when subscriptions change. Each change is applied to
+     * the sublist first, then bumps the generation, then patches the cached matches the subscriptions
+     * match. A literal subscription can only match its own subject, so that is a single lookup; only
+     * wildcard subscriptions need a pass over the cache. Must be called holding the subscription lock.
+     */
+
+    private void cacheAdd(Collection<Subscription> subs) {
+        generation.incrementAndGet();
+        Sublist wildcards = new Sublist();
+        for (Subscription s : subs) {
+            if (s.literal) {
+                SubscriptionMatch match = cache.peek(s.subject);
+                if (match != null)
+                    match.add(s);
+            } else {
+                wildcards.insert(s);
             }
-            subs = copy.toArray(new Subscription[copy.size()]);
-            cache = new ConcurrentHashMap<>();
         }
+        if (wildcards.count() == 0)
+            return;
+        List<Subscription> matched = new ArrayList<>();
+        for (SubscriptionMatch match : cache.values()) {
+            matchAll(wildcards, match.subject, matched);
+            for (Subscription s : matched)
+                match.add(s);
+            matched.clear();
+        }
+    }
+
+    private void cacheRemove(Collection<Subscription> subs) {
+        generation.incrementAndGet();
+        Sublist wildcards = new Sublist();
+        for (Subscription s : subs) {
+            if (s.literal) {
+                SubscriptionMatch match = cache.peek(s.subject);
+                if (match != null)
+                    match.removeAll(Collections.singleton(s));
+            } else {
+                wildcards.insert(s);
+            }
+        }
+        if (wildcards.count() == 0)
+            return;
+        List<Subscription> matched = new ArrayList<>();
+        for (SubscriptionMatch match : cache.values()) {
+            matchAll(wildcards, match.subject, matched);
+            if (!matched.isEmpty())
+                match.removeAll(new HashSet<>(matched));
+            matched.clear();
+        }
+    }
+
+    private static void matchAll(Sublist sublist, CharSeq subject, List<Subscription> matched) {
+        Map<CharSeq, List<Subscription>> groups = new HashMap<>();
+        sublist.match(subject, matched, groups);
+        for (List<Subscription> gsubs : groups.values())
+            matched.addAll(gsubs);
     }
 
     public static class ServerInfo {
@@ -304,6 +1001,7 @@ public class Server {
         public boolean tls_required;
         public boolean tls_verify;
         public int client_id = 1;
+        public boolean headers = true;
         private ServerInfo(){}
     }
 
@@ -312,6 +1010,46 @@ public class Server {
         for(String s : args){
             if("--tls".equals(s)){
                 server.tlsRequired=true;
+            } else if(s.startsWith("--cache-size=")){
+                server.setMaxCacheSize(Integer.parseInt(s.substring("--cache-size=".length())));
+            } else if(s.startsWith("--cache-idle=")){
+                server.setMaxCacheIdle(Long.parseLong(s.substring("--cache-idle=".length())));
+            } else if(s.startsWith("--transport=")){
+                server.setTransport(Transport.valueOf(s.substring("--transport=".length()).toUpperCase()));
+            } else if(s.startsWith("--io-loops=")){
+                server.setIOLoops(Integer.parseInt(s.substring("--io-loops=".length())));
+            } else if(s.startsWith("--flush-policy=")){
+                server.setFlushPolicy(s.substring("--flush-policy=".length()));
+            } else if(s.startsWith("--flushers=")){
+                server.setFlushers(Integer.parseInt(s.substring("--flushers=".length())));
+            } else if(s.startsWith("--gather-threshold=")){
+                server.setGatherThreshold(Integer.parseInt(s.substring("--gather-threshold=".length())));
+            } else if(s.startsWith("--max-pending=")){
+                server.setMaxPending(Long.parseLong(s.substring("--max-pending=".length())));
+            } else if(s.startsWith("--max-pending-msgs=")){
+                server.setMaxPendingMsgs(Integer.parseInt(s.substring("--max-pending-msgs=".length())));
+            } else if(s.startsWith("--write-deadline=")){
+                server.setWriteDeadline(Long.parseLong(s.substring("--write-deadline=".length())));
+            } else if(s.startsWith("--slow-consumer=")){
+                server.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(s.substring("--slow-consumer=".length()).toUpperCase()));
+            } else if(s.startsWith("--delivery-queue=")){
+                server.setDeliveryQueue(Integer.parseInt(s.substring("--delivery-queue=".length())));
+            } else if(s.startsWith("--handshake-threads=")){
+                server.setHandshakeThreads(Integer.parseInt(s.substring("--handshake-threads=".length())));
+            } else if(s.startsWith("--handshake-timeout=")){
+                server.setHandshakeTimeout(Long.parseLong(s.substring("--handshake-timeout=".length())));
+            } else if(s.startsWith("--acceptors=")){
+                server.setAcceptors(Integer.parseInt(s.substring("--acceptors=".length())));
+            } else if(s.startsWith("--backlog=")){
+                server.setBacklog(Integer.parseInt(s.substring("--backlog=".length())));
+            } else if(s.startsWith("--rcvbuf=")){
+                server.setReceiveBufferSize(Integer.parseInt(s.substring("--rcvbuf=".length())));
+            } else if(s.startsWith("--sndbuf=")){
+                server.setSendBufferSize(Integer.parseInt(s.substring("--sndbuf=".length())));
+            } else if(s.startsWith("--tcp-nodelay=")){
+                server.setTcpNoDelay(Boolean.parseBoolean(s.substring("--tcp-nodelay=".length())));
+            } else if(s.startsWith("--queue-policy=")){
+                server.setQueuePolicy(QueuePolicy.valueOf(s.substring("--queue-policy=".length()).toUpperCase().replace('-','_')));
             }
         }
         server.start();
@@ -0,0 +1,248 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.IntObjectMap;
+import com.robaho.jnatsd.util.SubjectTokenizer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.robaho.jnatsd.util.TokenTable.FWC;
+import static com.robaho.jnatsd.util.TokenTable.PWC;
+
+/**
+ * subscription index keyed by subject token, modelled on the gnatsd sublist. Each level holds
+ * the literal tokens in a map plus dedicated '*' and '>' nodes, so matching a subject costs
+ * O(subject depth) rather than O(number of subscriptions). Insert and remove are O(subject depth)
+ * as well, and the bulk operations are published to matchers atomically.
+ *
+ * Levels are keyed by the interned token identities of Subscription.tokens. A published subject is
+ * tokenized in place over its bytes and its tokens looked up in the token table, so matching does not
+ * allocate beyond the results. A token that is not interned cannot match any literal node.
+ */
+class Sublist {
+    private static class MatchState {
+        final SubjectTokenizer tokenizer = new SubjectTokenizer();
+        int[] tokens = new int[16];
+    }
+
+    private static final ThreadLocal<MatchState> matchState = ThreadLocal.withInitial(MatchState::new);
+
+    private final Level root = new Level();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int count;
+
+    private static class Level {
+        final IntObjectMap<Node> nodes = new IntObjectMap<>();
+        Node pwc, fwc;
+
+        boolean isEmpty() {
+            return nodes.isEmpty() && pwc == null && fwc == null;
+        }
+    }
+
+    private static class Node {
+        Level next;
+        final Set<Subscription> psubs = new LinkedHashSet<>();
+        final Map<CharSeq, Set<Subscription>> qsubs = new HashMap<>();
+
+        boolean isEmpty() {
+            return psubs.isEmpty() && qsubs.isEmpty() && (next == null || next.isEmpty());
+        }
+    }
+
+    public void insert(Subscription s) {
+        lock.writeLock().lock();
+        try {
+            insert0(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * insert all of the subscriptions, as a single change visible to matchers
+     */
+    public void insertAll(Collection<Subscription> subs) {
+        lock.writeLock().lock();
+        try {
+            for (Subscription s : subs)
+                insert0(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert0(Subscription s) {
+        Level l = root;
+        Node n = null;
+        for (int t : s.tokens) {
+            if (t == PWC) {
+                if (l.pwc == null)
+                    l.pwc = new Node();
+                n = l.pwc;
+            } else if (t == FWC) {
+                if (l.fwc == null)
+                    l.fwc = new Node();
+                n = l.fwc;
+            } else {
+                n = l.nodes.get(t);
+                if (n == null) {
+                    n = new Node();
+                    l.nodes.put(t, n);
+                }
+            }
+            if (n.next == null)
+                n.next = new Level();
+            l = n.next;
+        }
+        if (s.group.equals(CharSeq.EMPTY)) {
+            n.psubs.add(s);
+        } else {
+            n.qsubs.computeIfAbsent(s.group, k -> new LinkedHashSet<>()).add(s);
+        }
+        count++;
+    }
+
+    /**
+     * remove the subscription, pruning any nodes left empty
+     * @return true if the subscription was found
+     */
+    public boolean remove(Subscription s) {
+        lock.writeLock().lock();
+        try {
+            return remove0(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * remove all of the subscriptions, as a single change visible to matchers
+     */
+    public void removeAll(Collection<Subscription> subs) {
+        lock.writeLock().lock();
+        try {
+            for (Subscription s : subs)
+                remove0(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean remove0(Subscription s) {
+        if (!remove(root, s.tokens, 0, s))
+            return false;
+        count--;
+        return true;
+    }
+
+    private static boolean remove(Level l, int[] tokens, int index, Subscription s) {
+        int t = tokens[index];
+        Node n;
+        if (t == PWC) {
+            n = l.pwc;
+        } else if (t == FWC) {
+            n = l.fwc;
+        } else {
+            n = l.nodes.get(t);
+        }
+        if (n == null)
+            return false;
+
+        boolean removed;
+        if (index == tokens.length - 1) {
+            removed = removeFromNode(n, s);
+        } else {
+            removed = n.next != null && remove(n.next, tokens, index + 1, s);
+        }
+        if (removed && n.isEmpty()) {
+            if (n == l.pwc) {
+                l.pwc = null;
+            } else if (n == l.fwc) {
+                l.fwc = null;
+            } else {
+                l.nodes.remove(t);
+            }
+        }
+        return removed;
+    }
+
+    private static boolean removeFromNode(Node n, Subscription s) {
+        if (s.group.equals(CharSeq.EMPTY))
+            return n.psubs.remove(s);
+        Set<Subscription> group = n.qsubs.get(s.group);
+        if (group == null || !group.remove(s))
+            return false;
+        if (group.isEmpty())
+            n.qsubs.remove(s.group);
+        return true;
+    }
+
+    /**
+     * collect all subscriptions matching the literal subject
+     * @param psubs receives the plain subscriptions
+     * @param qsubs receives the queue subscriptions, by group
+     */
+    public void match(CharSeq subject, List<Subscription> psubs, Map<CharSeq, List<Subscription>> qsubs) {
+        MatchState state = matchState.get();
+        int count = state.tokenizer.tokenize(subject);
+        if (state.tokens.length < count)
+            state.tokens = new int[count];
+        int[] tokens = state.tokens;
+        lock.readLock().lock();
+        try {
+            // subscriptions intern their tokens before insert, so every token in the levels is found by lookup
+            for (int i = 0; i < count; i++)
+                tokens[i] = Subscription.tokenTable.lookup(subject, state.tokenizer.offset(i), state.tokenizer.length(i));
+            matchLevel(root, tokens, count, 0, psubs, qsubs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void matchLevel(Level l, int[] tokens, int count, int index, List<Subscription> psubs, Map<CharSeq, List<Subscription>> qsubs) {
+        Node pwc = null, n = null;
+        for (int i = index; i < count; i++) {
+            if (l == null)
+                return;
+            if (l.fwc != null)
+                addNode(l.fwc, psubs, qsubs);
+            pwc = l.pwc;
+            if (pwc != null)
+                matchLevel(pwc.next, tokens, count, i + 1, psubs, qsubs);
+            n = l.nodes.get(tokens[i]);
+            l = n != null ? n.next : null;
+        }
+        if (n != null)
+            addNode(n, psubs, qsubs);
+        if (pwc != null)
+            addNode(pwc, psubs, qsubs);
+    }
+
+    private static void addNode(Node n, List<Subscription> psubs, Map<CharSeq, List<Subscription>> qsubs) {
+        // iterate rather than addAll, which copies the set to an array
+        for (Subscription s : n.psubs)
+            psubs.add(s);
+        for (Map.Entry<CharSeq, Set<Subscription>> e : n.qsubs.entrySet()) {
+            List<Subscription> group = qsubs.computeIfAbsent(e.getKey(), k -> new ArrayList<>());
+            for (Subscription s : e.getValue())
+                group.add(s);
+        }
+    }
+
+    public int count() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,72 +1,151 @@
 package com.robaho.jnatsd;
 
 import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.SubjectTokenizer;
+import com.robaho.jnatsd.util.TokenTable;
 
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import static com.robaho.jnatsd.util.TokenTable.FWC;
+import static com.robaho.jnatsd.util.TokenTable.PWC;
 
 /**
  * holds a per connection subscription to a subject
  */
 class Subscription implements Comparable<Subscription> {
+    /** the interned subject tokens of all live subscriptions */
+    static final TokenTable tokenTable = new TokenTable();
+
     Connection connection;
     CharSeq subject;
     CharSeq group;
     int ssid;
+    /** true if the subject contains no wildcards */
+    final boolean literal;
 
-    private String[] segments;
+    /** the interned subject tokens */
+    final int[] tokens;
 
-    private static Pattern dot = Pattern.compile("\\.");
+    /** the messages after which the subscription is removed, or 0 for no limit, see UNSUB */
+    volatile long max;
+    /** the messages routed to the subscription */
+    private volatile long delivered;
+    private static final AtomicLongFieldUpdater<Subscription> DELIVERED = AtomicLongFieldUpdater.newUpdater(Subscription.class, "delivered");
 
     public Subscription(Connection connection, int ssid, CharSeq subject, CharSeq group) {
         this.connection=connection;
         this.ssid=ssid;
         this.subject = subject;
         this.group=group;
-        segments = dot.split(subject);
+
+        SubjectTokenizer tokenizer = new SubjectTokenizer();
+        tokens = new int[tokenizer.tokenize(subject)];
+        boolean wildcards = false;
+        for(int i=0;i<tokens.length;i++) {
+            tokens[i] = tokenTable.intern(subject,tokenizer.offset(i),tokenizer.length(i));
+            if(tokens[i]==PWC || tokens[i]==FWC)
+                wildcards = true;
+        }
+        literal = !wildcards;
     }
     public Subscription(Connection connection, int ssid, String subject, String group) {
         this(connection,ssid,new CharSeq(subject.getBytes()),new CharSeq(group.getBytes()));
     }
 
+    /**
+     * count a message routed to the subscription
+     * @return false if the subscription has already received its maximum, so must not receive the message
+     */
+    boolean claim() {
+        if (max == 0) {
+            DELIVERED.incrementAndGet(this);
+            return true;
+        }
+        // concurrent publishers must not deliver beyond the maximum
+        while (true) {
+            long n = delivered;
+            if (n >= max)
+                return false;
+            if (DELIVERED.compareAndSet(this, n, n + 1))
+                return true;
+        }
+    }
+
+    /**
+     * @return true if the subscription has received its maximum, and should be removed
+     */
+    boolean isExpired() {
+        long _max = max;
+        return _max > 0 && delivered >= _max;
+    }
+
+    long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * release the interned subject tokens, once the subscription has been removed from the server
+     */
+    void release() {
+        for(int token : tokens)
+            tokenTable.release(token);
+    }
+
     public String toString() {
         return ssid+","+subject+","+group+","+((connection!=null) ? connection.getRemote() : "");
     }
 
     @Override
     public int compareTo(Subscription o) {
-        int len = Math.min(segments.length,o.segments.length);
-        int diff = segments.length-o.segments.length;
+        int len = Math.min(tokens.length,o.tokens.length);
+        int diff = tokens.length-o.tokens.length;
         for(int i=0;i<len;i++){
-            int result = segments[i].compareTo(o.segments[i]);
+            int result = Integer.compare(tokens[i],o.tokens[i]);
             if(result==0)
                 continue;
-            if(segments[i].equals(">"))
+            if(tokens[i]==FWC)
                 return -1;
-            if(o.segments[i].equals(">"))
+            if(o.tokens[i]==FWC)
                 return 1;
-            if(segments[i].equals("*") && diff<=0)
+            if(tokens[i]==PWC && diff<=0)
                 return -1;
-            if(o.segments[i].equals("*") && diff>=0)
+            if(o.tokens[i]==PWC && diff>=0)
                 return 1;
-            if(result!=0)
-                return result;
+            return result;
         }
-        if(segments.length==o.segments.length)
+        if(tokens.length==o.tokens.length)
             return 0;
-        if(segments.length<o.segments.length)
+        if(tokens.length<o.tokens.length)
             return -1;
         return 1;
     }
 
+    /**
+     * @return true if the subscription matches the literal subject
+     */
+    boolean matches(CharSeq subject) {
+        SubjectTokenizer tokenizer = new SubjectTokenizer();
+        int n = tokenizer.tokenize(subject);
+        for(int i=0;i<tokens.length;i++) {
+            if(i==n)
+                return false;
+            if(tokens[i]==FWC)
+                return true;
+            if(tokens[i]!=PWC && tokens[i]!=tokenTable.lookup(subject,tokenizer.offset(i),tokenizer.length(i)))
+                return false;
+        }
+        return n==tokens.length;
+    }
+
     public boolean matches(Subscription s) {
-        int len = Math.min(segments.length,s.segments.length);
+        int len = Math.min(tokens.length,s.tokens.length);
         for(int i=0;i<len;i++) {
-            if(segments[i].equals("*") || segments[i].equals(s.segments[i]))
+            if(tokens[i]==PWC || tokens[i]==s.tokens[i])
                 continue;
-            if(segments[i].equals(">"))
+            if(tokens[i]==FWC)
                 return true;
             return false;
         }
-        return s.segments.length==segments.length;
+        return s.tokens.length==tokens.length;
     }
 }
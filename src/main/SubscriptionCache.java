@@ -0,0 +1,133 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.CoarseClock;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * size bounded cache of SubscriptionMatch by subject.
+ *
+ * Eviction uses the CLOCK algorithm, with SubscriptionMatch.lastUsed as the reference bit: the hand
+ * gives a second chance to any entry used since the hand started its previous revolution, and
+ * evicts the rest. Entries idle for longer than maxIdle are purged as the hand passes them, which
+ * keeps unique request/reply subjects from lingering below the size limit.
+ */
+class SubscriptionCache {
+    private final Map<CharSeq, SubscriptionMatch> map = new ConcurrentHashMap<>();
+    private final CoarseClock clock;
+    private final int maxSize;
+    private final long maxIdle;
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private Iterator<SubscriptionMatch> hand;
+    private long revolutionStart, previousRevolutionStart;
+    private long lastPurge;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize the maximum number of cached subjects
+     * @param maxIdle entries unused for longer than this many milliseconds are purged
+     */
+    SubscriptionCache(CoarseClock clock, int maxSize, long maxIdle) {
+        this.clock = clock;
+        this.maxSize = maxSize;
+        this.maxIdle = maxIdle;
+        this.lastPurge = clock.now();
+    }
+
+    /**
+     * @return the cached match, marking it as used, or null if the subject is not cached
+     */
+    SubscriptionMatch get(CharSeq subject) {
+        SubscriptionMatch match = map.get(subject);
+        if (match == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        long now = clock.now();
+        if (match.lastUsed != now)
+            match.lastUsed = now;
+        return match;
+    }
+
+    /**
+     * @return the cached match without marking it as used, or null if the subject is not cached
+     */
+    SubscriptionMatch peek(CharSeq subject) {
+        return map.get(subject);
+    }
+
+    SubscriptionMatch putIfAbsent(SubscriptionMatch match) {
+        long now = clock.now();
+        match.lastUsed = now;
+        SubscriptionMatch old = map.putIfAbsent(match.subject, match);
+        if (old == null && (map.size() > maxSize || now - lastPurge > maxIdle))
+            evict();
+        return old;
+    }
+
+    boolean remove(SubscriptionMatch match) {
+        return map.remove(match.subject, match);
+    }
+
+    Collection<SubscriptionMatch> values() {
+        return map.values();
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            long now = clock.now();
+            boolean purge = now - lastPurge > maxIdle;
+            int size = map.size();
+            // purging makes a full revolution, otherwise stop once within bounds. The second
+            // revolution evicts without a second chance, so every call terminates.
+            int limit = purge ? size : size * 2;
+            for (int scanned = 0; scanned < limit && (purge || map.size() > maxSize); scanned++) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.values().iterator();
+                    previousRevolutionStart = revolutionStart;
+                    revolutionStart = now;
+                    if (!hand.hasNext())
+                        break;
+                }
+                SubscriptionMatch match = hand.next();
+                boolean idle = now - match.lastUsed > maxIdle;
+                boolean overflow = map.size() > maxSize && (scanned >= size || match.lastUsed < previousRevolutionStart);
+                if ((idle || overflow) && map.remove(match.subject, match))
+                    evictions.increment();
+            }
+            if (purge)
+                lastPurge = now;
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,181 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.Ascii;
+import com.robaho.jnatsd.util.CharSeq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the subscriptions matching a literal subject, cached by subject. Subscription changes patch the
+ * match in place by swapping in new arrays, so routing never sees a partially updated list.
+ * Patching must be serialized by the caller.
+ */
+class SubscriptionMatch {
+    long lastUsed; // for CLOCK eviction, see SubscriptionCache
+    CharSeq subject;
+    volatile Recipient[] subs;
+    volatile QueueGroup[] groups;
+
+    /**
+     * a subscription with its MSG prefix for the subject, "MSG subject ssid ", encoded once for the
+     * match so a delivery only encodes the message's reply and size
+     */
+    static final class Recipient {
+        final Subscription sub;
+        final byte[] prefix;
+
+        Recipient(CharSeq subject, Subscription sub) {
+            this.sub = sub;
+            byte[] b = new byte[4 + subject.length() + 1 + Ascii.digits(sub.ssid) + 1];
+            b[0] = 'M'; b[1] = 'S'; b[2] = 'G'; b[3] = ' ';
+            int off = 4 + subject.copyTo(b, 4);
+            b[off++] = ' ';
+            off = Ascii.putInt(b, off, sub.ssid);
+            b[off] = ' ';
+            this.prefix = b;
+        }
+    }
+
+    /**
+     * the members of a queue group matching the subject, one of which receives each message
+     */
+    static class QueueGroup {
+        final CharSeq name;
+        final Recipient[] members;
+        /** shared by the patched copies of the group, so the rotation survives membership changes */
+        final AtomicInteger cursor;
+
+        QueueGroup(CharSeq name, Recipient[] members, AtomicInteger cursor) {
+            this.name = name;
+            this.members = members;
+            this.cursor = cursor;
+        }
+
+        /**
+         * select the member to receive the next message, in rotation. If leastPending, the member whose
+         * connection has the smallest outbound backlog is chosen, starting from the rotation so that
+         * idle members share the load.
+         */
+        Recipient select(boolean leastPending) {
+            Recipient[] _members = members;
+            int n = _members.length;
+            int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % n;
+            if (!leastPending || n == 1)
+                return _members[start];
+            Recipient selected = _members[start];
+            long min = selected.sub.connection.getPendingBytes();
+            for (int i = 1; i < n && min > 0; i++) {
+                Recipient r = _members[(start + i) % n];
+                long pending = r.sub.connection.getPendingBytes();
+                if (pending < min) {
+                    selected = r;
+                    min = pending;
+                }
+            }
+            return selected;
+        }
+    }
+
+    SubscriptionMatch(CharSeq subject, List<Subscription> psubs, Map<CharSeq, List<Subscription>> qsubs) {
+        this.subject = subject;
+        this.subs = recipients(subject, psubs);
+        QueueGroup[] _groups = new QueueGroup[qsubs.size()];
+        int i = 0;
+        for (Map.Entry<CharSeq, List<Subscription>> group : qsubs.entrySet()) {
+            _groups[i++] = new QueueGroup(group.getKey(), recipients(subject, group.getValue()), new AtomicInteger());
+        }
+        this.groups = _groups;
+    }
+
+    /**
+     * add the subscription, if not already present
+     */
+    void add(Subscription s) {
+        if (s.group.equals(CharSeq.EMPTY)) {
+            Recipient[] _subs = subs;
+            if (indexOf(_subs, s) >= 0)
+                return;
+            _subs = Arrays.copyOf(_subs, _subs.length + 1);
+            _subs[_subs.length - 1] = new Recipient(subject, s);
+            subs = _subs;
+            return;
+        }
+        QueueGroup[] _groups = groups;
+        for (int i = 0; i < _groups.length; i++) {
+            QueueGroup group = _groups[i];
+            if (!group.name.equals(s.group))
+                continue;
+            if (indexOf(group.members, s) >= 0)
+                return;
+            Recipient[] members = Arrays.copyOf(group.members, group.members.length + 1);
+            members[members.length - 1] = new Recipient(subject, s);
+            _groups = _groups.clone();
+            _groups[i] = new QueueGroup(group.name, members, group.cursor);
+            groups = _groups;
+            return;
+        }
+        _groups = Arrays.copyOf(_groups, _groups.length + 1);
+        _groups[_groups.length - 1] = new QueueGroup(s.group, new Recipient[]{new Recipient(subject, s)}, new AtomicInteger());
+        groups = _groups;
+    }
+
+    /**
+     * remove the subscriptions, if present
+     */
+    void removeAll(Set<Subscription> toRemove) {
+        Recipient[] _subs = subs;
+        Recipient[] remaining = without(_subs, toRemove);
+        if (remaining != _subs)
+            subs = remaining;
+
+        QueueGroup[] _groups = groups;
+        List<QueueGroup> patched = new ArrayList<>(_groups.length);
+        boolean changed = false;
+        for (QueueGroup group : _groups) {
+            Recipient[] members = without(group.members, toRemove);
+            if (members == group.members) {
+                patched.add(group);
+                continue;
+            }
+            changed = true;
+            if (members.length > 0)
+                patched.add(new QueueGroup(group.name, members, group.cursor));
+        }
+        if (changed)
+            groups = patched.toArray(new QueueGroup[patched.size()]);
+    }
+
+    private static Recipient[] recipients(CharSeq subject, List<Subscription> subs) {
+        Recipient[] recipients = new Recipient[subs.size()];
+        for (int i = 0; i < recipients.length; i++)
+            recipients[i] = new Recipient(subject, subs.get(i));
+        return recipients;
+    }
+
+    private static int indexOf(Recipient[] recipients, Subscription s) {
+        for (int i = 0; i < recipients.length; i++) {
+            if (recipients[i].sub == s)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the recipients whose subscription is not in toRemove, or the same array if there are none to remove
+     */
+    private static Recipient[] without(Recipient[] recipients, Set<Subscription> toRemove) {
+        List<Recipient> remaining = new ArrayList<>(recipients.length);
+        for (Recipient r : recipients) {
+            if (!toRemove.contains(r.sub))
+                remaining.add(r);
+        }
+        if (remaining.size() == recipients.length)
+            return recipients;
+        return remaining.toArray(new Recipient[remaining.size()]);
+    }
+}
@@ -0,0 +1,40 @@
+package com.robaho.jnatsd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * checks the connections for output the socket has not accepted within the write deadline. A thread
+ * blocked writing to a slow socket can't check this itself, so the connection is checked periodically.
+ */
+class WriteDeadlineMonitor implements Runnable {
+    private final Server server;
+    private final long interval;
+    private final Thread thread;
+    private volatile boolean done;
+
+    WriteDeadlineMonitor(Server server, long deadline) {
+        this.server = server;
+        this.interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), deadline / 4);
+        this.thread = new Thread(this, "WriteDeadline");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        done = true;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+    public void run() {
+        while (!done) {
+            LockSupport.parkNanos(interval);
+            long now = System.nanoTime();
+            for (Connection c : server.getConnections())
+                c.checkWriteDeadline(now);
+        }
+    }
+}
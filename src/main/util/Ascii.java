@@ -0,0 +1,52 @@
+package com.robaho.jnatsd.util;
+
+/**
+ * encoding of protocol numbers as ASCII decimal, two digits per division
+ */
+public final class Ascii {
+    private static final byte[] TENS = new byte[100];
+    private static final byte[] ONES = new byte[100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            TENS[i] = (byte) ('0' + i / 10);
+            ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    private Ascii() {
+    }
+
+    /**
+     * @return the number of decimal digits in the non-negative value
+     */
+    public static int digits(int v) {
+        int n = 1;
+        for (long limit = 10; limit <= v && n < 10; limit *= 10)
+            n++;
+        return n;
+    }
+
+    /**
+     * write the non-negative value in decimal at off
+     * @return the offset following the digits
+     */
+    public static int putInt(byte[] b, int off, int v) {
+        int end = off + digits(v);
+        int pos = end;
+        while (v >= 100) {
+            int q = v / 100;
+            int r = v - q * 100;
+            v = q;
+            b[--pos] = ONES[r];
+            b[--pos] = TENS[r];
+        }
+        if (v >= 10) {
+            b[--pos] = ONES[v];
+            b[--pos] = TENS[v];
+        } else {
+            b[--pos] = (byte) ('0' + v);
+        }
+        return end;
+    }
+}
@@ -0,0 +1,131 @@
+package com.robaho.jnatsd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * pool of byte arrays in power of two size classes. Each class keeps a bounded free list, so the
+ * pool never retains more than its budget; arrays larger than the largest class are not pooled.
+ *
+ * Arrays are kept on the heap rather than off-heap, since they are written to the connection output
+ * buffers with plain array copies.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6; // 64 bytes
+
+    private final int maxSize;
+    private final SizeClass[] classes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+
+    private static class SizeClass {
+        final int size;
+        final byte[][] free;
+        int count;
+
+        SizeClass(int size, int capacity) {
+            this.size = size;
+            this.free = new byte[capacity][];
+        }
+    }
+
+    /**
+     * @param maxSize the largest array size pooled, rounded up to a power of two
+     * @param maxPooledBytes the budget for idle arrays, shared evenly by the size classes
+     */
+    public BufferPool(int maxSize, long maxPooledBytes) {
+        int maxShift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(maxSize - 1));
+        this.maxSize = 1 << maxShift;
+        int n = maxShift - MIN_SHIFT + 1;
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            classes[i] = new SizeClass(size, (int) Math.max(1, Math.min(4096, maxPooledBytes / n / size)));
+        }
+    }
+
+    /**
+     * @return an array of at least size bytes, which should be returned with release()
+     */
+    public byte[] acquire(int size) {
+        if (size > maxSize) {
+            misses.increment();
+            return new byte[size];
+        }
+        SizeClass sc = classes[index(size)];
+        byte[] b = null;
+        synchronized (sc) {
+            if (sc.count > 0) {
+                b = sc.free[--sc.count];
+                sc.free[sc.count] = null;
+            }
+        }
+        if (b != null) {
+            hits.increment();
+            pooledBytes.addAndGet(-sc.size);
+        } else {
+            misses.increment();
+            b = new byte[sc.size];
+        }
+        inUseBytes.addAndGet(sc.size);
+        return b;
+    }
+
+    /**
+     * return an array obtained from acquire(). It is dropped if its class's free list is full.
+     */
+    public void release(byte[] b) {
+        if (b.length > maxSize || Integer.bitCount(b.length) != 1 || b.length < 1 << MIN_SHIFT)
+            return; // not from a size class
+        SizeClass sc = classes[index(b.length)];
+        inUseBytes.addAndGet(-sc.size);
+        boolean pooled = false;
+        synchronized (sc) {
+            if (sc.count < sc.free.length) {
+                sc.free[sc.count++] = b;
+                pooled = true;
+            }
+        }
+        if (pooled)
+            pooledBytes.addAndGet(sc.size);
+    }
+
+    private static int index(int size) {
+        if (size <= 1 << MIN_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the fraction of acquires satisfied from the pool
+     */
+    public double hitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the bytes held by the pool, both idle and acquired
+     */
+    public long footprint() {
+        return pooledBytes.get() + inUseBytes.get();
+    }
+
+    /**
+     * @return the bytes held idle in the free lists
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+}
@@ -4,24 +4,71 @@ package com.robaho.jnatsd.util;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import static com.robaho.jnatsd.util.JvmUtils.bufferAddress;
 import static com.robaho.jnatsd.util.JvmUtils.unsafe;
 import static sun.misc.Unsafe.ARRAY_BYTE_BASE_OFFSET;
 
 /**
- * buffered output stream to channel backed by direct byte buffer
+ * buffered output stream to channel backed by direct byte buffer.
+ *
+ * Large shared arrays can be written by reference with writeShared(), rather than copied into the
+ * buffer. The output is then held as a list of segments, alternating between regions of the buffer
+ * and the shared arrays, and is written with a single gathering write.
+ *
+ * Writing never waits for the channel. When the buffer fills, the bytes the channel has not yet
+ * accepted stay in it as pending segments, and writing continues in another direct buffer, up to
+ * maxPending bytes in total. Buffers are reused once written, so the output is never copied to the
+ * heap, where the JDK would copy it back to a temporary direct buffer to write it.
+ * The output is only written by flush(), which waits on a blocking channel, or tryFlush(), which
+ * writes what the channel accepts and keeps the rest.
+ *
+ * For a blocking channel, takeOutput() hands the pending output to a Batch, which can be written
+ * without holding the lock guarding the stream, while writing continues into a second buffer.
  */
 public
 class ChannelOutputStream extends OutputStream {
+    /** the bytes offered to a gathering write, the JDK copies heap buffers to temporary direct buffers to write them */
+    private static final int MAX_GATHER = 256*1024;
+    /** the written buffers kept for reuse */
+    private static final int MAX_FREE = 4;
+
     private final WritableByteChannel channel;
-    private final ByteBuffer buffer;
-    private final long address;
+    private ByteBuffer buffer;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>(); // written buffers, for reuse
+    private long buffersAllocated;
+    private long address;
     private final int size;
+    private final long maxPending;
     private int position;
 
+    // output pending ahead of the buffered bytes, the buffer regions are reused once they are written
+    private ByteBuffer[] segments = new ByteBuffer[8];
+    private RefCounted[] refs = new RefCounted[8];
+    private int first, count;
+    private long segmentBytes; // remaining in the segments
+    private int segmentStart; // start of the buffered bytes not yet written or in a segment
+
+    private Batch batch; // output taken to be written
+    private long batchBytes;
+
+    private long writes, bytesWritten;
+
     public ChannelOutputStream(WritableByteChannel channel, int size) {
+        this(channel, size, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPending the maximum bytes not yet written to the channel, beyond which writes fail. It is
+     *                   checked when a write does not fit the buffer, so the pending bytes can exceed it by
+     *                   up to the buffer size.
+     */
+    public ChannelOutputStream(WritableByteChannel channel, int size, long maxPending) {
         if (size <= 0) {
             throw new IllegalArgumentException("Buffer size <= 0");
         }
@@ -29,24 +76,10 @@ class ChannelOutputStream extends OutputStream {
             throw new IllegalArgumentException("channel is null");
         }
         this.channel = channel;
-        this.buffer = ByteBuffer.allocateDirect(size);
-        this.address = bufferAddress(buffer);
         this.size=size;
-    }
-
-    /** Flush the internal buffer */
-    private void flushBuffer() throws IOException {
-        if(position!=0) {
-            buffer.position(position);
-            buffer.flip();
-            channel.write(buffer);
-            while(buffer.hasRemaining()) {
-                Thread.yield();
-                channel.write(buffer);
-            }
-            buffer.clear();
-            position=0;
-        }
+        this.buffer = acquireBuffer();
+        this.address = bufferAddress(buffer);
+        this.maxPending=maxPending;
     }
 
     /**
@@ -57,30 +90,368 @@ class ChannelOutputStream extends OutputStream {
      */
     public void write(int b) throws IOException {
         if(position==size) {
-            flush();
+            checkLimit(1);
+            spill();
         }
         unsafe.putByte(address+position++,(byte)b);
     }
     public void write(byte b[], int off, int len) throws IOException {
         if(len > size-position) {
-            flush();
+            checkLimit(len);
+            if(len>=size) {
+                // too large to buffer, keep a copy
+                addBufferSegment();
+                addSegment(ByteBuffer.wrap(Arrays.copyOfRange(b,off,off+len)),null);
+                return;
+            }
+            spill();
         }
-        if(len>=size) {
-            channel.write(ByteBuffer.wrap(b,off,len));
+        if(len<8) {
+            for(int i=0;i<len;i++) {
+                unsafe.putByte(address+position++,b[off++]);
+            }
         } else {
-            if(len<8) {
-                for(int i=0;i<len;i++) {
-                    unsafe.putByte(address+position++,b[off++]);
+            copyMemory(b, ARRAY_BYTE_BASE_OFFSET + off, null, address + position, len);
+            position+=len;
+        }
+    }
+
+    /**
+     * write all of the pending output. On a non-blocking channel this only writes what the channel
+     * accepts, as tryFlush(), and the caller must wait for the channel to be writable.
+     */
+    public void flush() throws IOException {
+        while(!tryFlush()) {
+            if(isNonBlocking())
+                return;
+        }
+    }
+
+    /**
+     * write as much of the pending output as the channel accepts without waiting, keeping the remainder
+     * @return true if the output was fully written
+     */
+    public boolean tryFlush() throws IOException {
+        if(batch!=null)
+            throw new IllegalStateException("output taken");
+        if(count==0) {
+            if(position!=segmentStart) {
+                buffer.limit(position);
+                buffer.position(segmentStart);
+                channelWrite(buffer);
+                segmentStart=buffer.position();
+                buffer.clear();
+                if(segmentStart!=position)
+                    return false;
+            }
+            position=segmentStart=0;
+            return channelFlushed();
+        }
+        addBufferSegment();
+        return writeSegments() && channelFlushed();
+    }
+
+    /**
+     * @return true if the channel holds none of the output, a TLS channel may hold encrypted records
+     */
+    private boolean channelFlushed() throws IOException {
+        return !(channel instanceof TLSChannel) || ((TLSChannel)channel).flushBuffered();
+    }
+
+    /**
+     * write the array by reference rather than copying it. The array must not change until written,
+     * so the owner is retained until then.
+     */
+    public void writeShared(RefCounted owner, byte b[], int off, int len) throws IOException {
+        checkLimit(len);
+        addBufferSegment();
+        owner.retain();
+        addSegment(ByteBuffer.wrap(b,off,len),owner);
+    }
+
+    /**
+     * take the pending output, to be written by Batch.write() without holding the stream's lock. The
+     * stream continues with its other buffer. complete() must be called once the batch is written, before
+     * the output is taken again.
+     */
+    public Batch takeOutput() {
+        if(batch!=null)
+            throw new IllegalStateException("output already taken");
+        addBufferSegment();
+        Batch b = new Batch(Arrays.copyOfRange(segments,first,count),Arrays.copyOfRange(refs,first,count),position>0 ? buffer : null);
+        Arrays.fill(segments,first,count,null);
+        Arrays.fill(refs,first,count,null);
+        first=count=0;
+        if(position>0) {
+            // regions of the buffer belong to the batch until it is written
+            buffer = acquireBuffer();
+            address = bufferAddress(buffer);
+        }
+        position=segmentStart=0;
+        batch=b;
+        batchBytes=segmentBytes;
+        segmentBytes=0;
+        return b;
+    }
+
+    /**
+     * end the batch, releasing the shared arrays it holds, whether or not it was fully written
+     */
+    public void complete(Batch b) {
+        if(b!=batch)
+            throw new IllegalStateException("not the current batch");
+        for(RefCounted ref : b.refs) {
+            if(ref!=null)
+                ref.release();
+        }
+        if(b.buffer!=null)
+            releaseBuffer(b.buffer);
+        writes+=b.writes;
+        bytesWritten+=b.bytesWritten;
+        batch=null;
+        batchBytes=0;
+    }
+
+    /**
+     * pending output taken from the stream, see takeOutput()
+     */
+    public class Batch {
+        private final ByteBuffer[] segments;
+        private final RefCounted[] refs;
+        private final ByteBuffer buffer;
+        private long writes, bytesWritten;
+
+        private Batch(ByteBuffer[] segments, RefCounted[] refs, ByteBuffer buffer) {
+            this.segments = segments;
+            this.refs = refs;
+            this.buffer = buffer;
+        }
+
+        /**
+         * write the batch to the blocking channel, waiting until it is fully written
+         */
+        public void write() throws IOException {
+            int first = 0;
+            while(first<segments.length) {
+                long n;
+                if(channel instanceof GatheringByteChannel) {
+                    n = ((GatheringByteChannel)channel).write(segments,first,gatherLength(segments,first,segments.length));
+                } else {
+                    n = channel.write(segments[first]);
                 }
+                writes++;
+                bytesWritten+=n;
+                while(first<segments.length && !segments[first].hasRemaining())
+                    first++;
+            }
+        }
+    }
+
+    /**
+     * release the shared arrays not yet written, when the output is abandoned
+     */
+    public void discard() {
+        for(int i=first;i<count;i++) {
+            if(refs[i]!=null)
+                refs[i].release();
+        }
+        resetSegments();
+    }
+
+    /**
+     * @return the number of bytes not yet written to the channel, including any taken batch
+     */
+    public long pending() {
+        long pending = segmentBytes+position-segmentStart+batchBytes;
+        if(channel instanceof TLSChannel)
+            pending += ((TLSChannel)channel).buffered();
+        return pending;
+    }
+
+    /**
+     * @return the number of writes to the channel, each a system call for a socket channel
+     */
+    public long writes() {
+        return writes;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of direct buffers allocated, the others were reused
+     */
+    public long buffersAllocated() {
+        return buffersAllocated;
+    }
+
+    private void checkLimit(int len) throws PendingLimitException {
+        if(pending()+len>maxPending)
+            throw new PendingLimitException(maxPending);
+    }
+
+    private boolean isNonBlocking() {
+        if(channel instanceof TLSChannel)
+            return !((TLSChannel)channel).isBlocking();
+        return channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking();
+    }
+
+    /**
+     * make room to write, continuing in another buffer if the channel has not accepted the bytes in
+     * this one. Its pending segments keep it until they are written.
+     */
+    private void spill() throws IOException {
+        if(isNonBlocking() && tryFlush())
+            return;
+        addBufferSegment();
+        Retired retired = null;
+        for(int i=first;i<count;i++) {
+            // the regions of earlier buffers already have an owner
+            if(refs[i]==null && segments[i].isDirect()) {
+                if(retired==null)
+                    retired = new Retired(buffer);
+                retired.refs++;
+                refs[i]=retired;
+            }
+        }
+        if(retired!=null) {
+            buffer = acquireBuffer();
+            address = bufferAddress(buffer);
+        }
+        position=segmentStart=0;
+    }
+
+    /**
+     * a full buffer with pending segments, reused once they are all written or discarded
+     */
+    private final class Retired implements RefCounted {
+        private final ByteBuffer buffer;
+        private int refs;
+
+        Retired(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void retain() {
+            refs++;
+        }
+
+        public void release() {
+            if(--refs==0)
+                releaseBuffer(buffer);
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer b = free.poll();
+        if(b!=null)
+            return b;
+        buffersAllocated++;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void releaseBuffer(ByteBuffer b) {
+        if(free.size()<MAX_FREE) {
+            b.clear();
+            free.push(b);
+        }
+    }
+
+    private int channelWrite(ByteBuffer bb) throws IOException {
+        int n = channel.write(bb);
+        writes++;
+        bytesWritten+=n;
+        return n;
+    }
+
+    private void addBufferSegment() {
+        if(position==segmentStart)
+            return;
+        ByteBuffer bb = buffer.duplicate();
+        bb.limit(position);
+        bb.position(segmentStart);
+        addSegment(bb,null);
+        segmentStart=position;
+    }
+
+    private void addSegment(ByteBuffer bb, RefCounted ref) {
+        if(count==segments.length) {
+            if(first>0) {
+                System.arraycopy(segments,first,segments,0,count-first);
+                System.arraycopy(refs,first,refs,0,count-first);
+                Arrays.fill(segments,count-first,count,null);
+                Arrays.fill(refs,count-first,count,null);
+                count-=first;
+                first=0;
             } else {
-                copyMemory(b, ARRAY_BYTE_BASE_OFFSET + off, null, address + position, len);
-                position+=len;
+                segments = Arrays.copyOf(segments,count*2);
+                refs = Arrays.copyOf(refs,count*2);
             }
         }
+        segmentBytes+=bb.remaining();
+        segments[count]=bb;
+        refs[count++]=ref;
     }
-    public void flush() throws IOException {
-        flushBuffer();
+
+    /**
+     * @return true if all of the segments were written
+     */
+    private boolean writeSegments() throws IOException {
+        while(first<count) {
+            int length = gatherLength(segments,first,count);
+            long offered = 0;
+            for(int i=first;i<first+length;i++)
+                offered += segments[i].remaining();
+            long n;
+            if(channel instanceof GatheringByteChannel) {
+                n = ((GatheringByteChannel)channel).write(segments,first,length);
+                writes++;
+                bytesWritten+=n;
+            } else {
+                n = 0;
+                for(int i=first;i<first+length;i++) {
+                    int remaining = segments[i].remaining();
+                    int written = channelWrite(segments[i]);
+                    n += written;
+                    if(written<remaining)
+                        break;
+                }
+            }
+            segmentBytes-=n;
+            while(first<count && !segments[first].hasRemaining()) {
+                if(refs[first]!=null)
+                    refs[first].release();
+                segments[first]=null;
+                refs[first++]=null;
+            }
+            if(n<offered)
+                return false;
+        }
+        resetSegments();
+        return true;
     }
+
+    private void resetSegments() {
+        Arrays.fill(segments,first,count,null);
+        Arrays.fill(refs,first,count,null);
+        first=count=0;
+        segmentBytes=0;
+        segmentStart=0;
+        position=0;
+    }
+
+    /**
+     * @return the number of segments from first, at least one, to offer to a gathering write
+     */
+    private static int gatherLength(ByteBuffer[] segments, int first, int end) {
+        int bytes = segments[first].remaining();
+        int i = first+1;
+        while(i<end && bytes<MAX_GATHER)
+            bytes += segments[i++].remaining();
+        return i-first;
+    }
+
     private static void copyMemory(Object src, long srcAddress, Object dest, long destAddress, int length)
     {
         // The Unsafe Javadoc specifies that the transfer size is 8 iff length % 8 == 0
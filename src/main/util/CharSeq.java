@@ -54,6 +54,35 @@ public final class CharSeq implements CharSequence {
         return (char)(array[offset+index] &0xFF);
     }
 
+    public byte byteAt(int index) {
+        return array[offset+index];
+    }
+
+    /**
+     * @return the hash of the bytes in [from,from+len), computed as for hashCode()
+     */
+    public int hash(int from, int len) {
+        int hash=0;
+        for(int i=offset+from,end=i+len;i<end;i++) {
+            hash = hash * 31 + array[i];
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the bytes starting at from are equal to b, for the length of b
+     */
+    public boolean regionEquals(int from, byte[] b) {
+        if(from+b.length>len)
+            return false;
+        final int off = offset+from;
+        for(int i=0;i<b.length;i++) {
+            if(array[off+i]!=b[i])
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public CharSequence subSequence(int start, int end) {
         return new CharSeq(array,offset+start,end-start);
@@ -128,14 +157,14 @@ public final class CharSeq implements CharSequence {
     /** split on spaces, but handle quoted spaces */
     public int split(CharSeq[] segs) {
         int n=0;
-        int start=0;
+        int start=offset;
         int hash=0;
         boolean quoted = false;
 
         final byte[] a = array;
-        final int l = len;
+        final int l = offset+len;
 
-        for(int i=0;i<l;i++) {
+        for(int i=offset;i<l;i++) {
             byte c = a[i];
             if(c=='"') {
                 quoted ^= true;
@@ -156,6 +185,16 @@ public final class CharSeq implements CharSequence {
         return n;
     }
 
+    /**
+     * copy the bytes to dest at offset
+     * @return the number of bytes copied
+     */
+    public int copyTo(byte[] dest, int offset) {
+        if(len>0)
+            System.arraycopy(array,this.offset,dest,offset,len);
+        return len;
+    }
+
     public void write(OutputStream os) throws IOException {
         if(len==0)
             return;
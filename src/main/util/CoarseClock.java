@@ -0,0 +1,45 @@
+package com.robaho.jnatsd.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * millisecond clock updated by a background thread, so hot paths can read the time
+ * with a volatile load rather than a call to System.currentTimeMillis()
+ */
+public class CoarseClock {
+    private final long resolutionNanos;
+    private volatile long now = System.currentTimeMillis();
+    private volatile boolean done;
+    private Thread ticker;
+
+    public CoarseClock(long resolution, TimeUnit unit) {
+        this.resolutionNanos = unit.toNanos(resolution);
+    }
+
+    /**
+     * @return the current time in milliseconds, accurate to the clock resolution
+     */
+    public long now() {
+        return now;
+    }
+
+    public void start() {
+        ticker = new Thread(() -> {
+            while (!done) {
+                now = System.currentTimeMillis();
+                LockSupport.parkNanos(resolutionNanos);
+            }
+        }, "Clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public void stop() throws InterruptedException {
+        done = true;
+        if (ticker != null) {
+            LockSupport.unpark(ticker);
+            ticker.join();
+        }
+    }
+}
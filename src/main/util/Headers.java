@@ -0,0 +1,82 @@
+package com.robaho.jnatsd.util;
+
+/**
+ * the NATS message header block, a "NATS/1.0" line with an optional status code and description,
+ * "name: value" lines, and an empty line, each ending with CRLF. Messages carry the block as opaque
+ * bytes, and it is only parsed here when a value is needed.
+ */
+public final class Headers {
+    private static final byte[] VERSION = "NATS/1.0".getBytes();
+
+    private Headers() {
+    }
+
+    /**
+     * @return the status code on the first line of the block, or 0 if there is none
+     */
+    public static int status(byte[] b, int off, int len) {
+        int end = lineEnd(b, off, off + len);
+        if (end - off < VERSION.length || !regionEquals(b, off, VERSION))
+            return 0;
+        int i = off + VERSION.length;
+        while (i < end && b[i] == ' ')
+            i++;
+        int status = 0, digits = 0;
+        for (; i < end && b[i] >= '0' && b[i] <= '9'; i++, digits++)
+            status = status * 10 + b[i] - '0';
+        return digits == 3 ? status : 0;
+    }
+
+    /**
+     * @return the value of the first header with the name, compared ignoring case, without surrounding
+     * whitespace, or null if there is none
+     */
+    public static CharSeq get(byte[] b, int off, int len, String name) {
+        int end = off + len;
+        // skip the version line
+        for (int i = nextLine(b, off, end); i < end; i = nextLine(b, i, end)) {
+            int eol = lineEnd(b, i, end);
+            if (eol == i)
+                return null; // the empty line ending the block
+            if (eol - i <= name.length() || b[i + name.length()] != ':' || !nameEquals(b, i, name))
+                continue;
+            int start = i + name.length() + 1, stop = eol;
+            while (start < stop && (b[start] == ' ' || b[start] == '\t'))
+                start++;
+            while (stop > start && (b[stop - 1] == ' ' || b[stop - 1] == '\t'))
+                stop--;
+            return new CharSeq(b, start, stop - start);
+        }
+        return null;
+    }
+
+    private static int lineEnd(byte[] b, int i, int end) {
+        while (i < end && b[i] != '\r' && b[i] != '\n')
+            i++;
+        return i;
+    }
+
+    private static int nextLine(byte[] b, int i, int end) {
+        while (i < end && b[i] != '\n')
+            i++;
+        return i + 1;
+    }
+
+    private static boolean nameEquals(byte[] b, int off, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            int c = b[off + i];
+            int d = name.charAt(i);
+            if (c != d && ((c | 0x20) != (d | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z'))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(byte[] b, int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[off + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
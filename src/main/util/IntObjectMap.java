@@ -0,0 +1,114 @@
+package com.robaho.jnatsd.util;
+
+/**
+ * open addressing hash map from int keys to objects, which avoids boxing the keys. Not thread safe.
+ *
+ * @param <V>
+ */
+public final class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public IntObjectMap() {
+        this(8);
+    }
+
+    /**
+     * @param capacity the initial capacity, a power of two
+     */
+    public IntObjectMap(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object v = values[i];
+            if (v == null)
+                return null;
+            if (keys[i] == key)
+                return (V) v;
+        }
+    }
+
+    /**
+     * @param value the non-null value
+     * @return the previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object v = values[i];
+            if (v == null) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length)
+                    resize();
+                return null;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) v;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object v = values[i];
+            if (v == null)
+                return null;
+            if (keys[i] == key) {
+                values[i] = null;
+                size--;
+                shiftBack(i);
+                return (V) v;
+            }
+        }
+    }
+
+    // backward shift deletion, so probe sequences need no tombstones
+    private void shiftBack(int gap) {
+        for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        int[] _keys = keys;
+        Object[] _values = values;
+        keys = new int[_keys.length * 2];
+        values = new Object[_keys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < _keys.length; i++) {
+            if (_values[i] != null)
+                put(_keys[i], (V) _values[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,15 @@
+package com.robaho.jnatsd.util;
+
+import java.io.IOException;
+
+/**
+ * thrown when output cannot be buffered because the bytes not yet written to the channel would
+ * exceed the configured maximum
+ */
+public class PendingLimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PendingLimitException(long maxPending) {
+        super("maximum pending output of " + maxPending + " bytes exceeded");
+    }
+}
@@ -0,0 +1,9 @@
+package com.robaho.jnatsd.util;
+
+/**
+ * a resource shared by reference, freed when the last reference is released
+ */
+public interface RefCounted {
+    void retain();
+    void release();
+}
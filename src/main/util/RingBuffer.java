@@ -1,158 +1,295 @@
 package com.robaho.jnatsd.util;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
- * ring buffer designed for multiple writers and a single reader
+ * ring buffer designed for multiple writers and a single reader.
+ *
+ * Writers claim a slot by advancing the tail sequence, and then store the item in it. The reader takes
+ * items from the head sequence, clearing each slot before advancing the head past it, so a writer that
+ * has claimed a slot always finds it empty. The sequences only increase, and are masked to index the
+ * ring, so the capacity is rounded up to a power of two.
+ *
+ * A slot may be claimed but not yet stored, in which case the reader sees no item until the writer
+ * completes, even if later slots are ready. Items from a single writer are always read in order.
  *
  * @param <T>
  */
 public class RingBuffer<T> {
+    /**
+     * how a writer waits for space, or the reader waits for an item
+     */
+    public enum WaitStrategy {
+        /** busy loop, lowest latency but occupies a cpu while waiting */
+        SPIN,
+        /** yield the cpu between attempts */
+        YIELD,
+        /** yield briefly, then park. The reader is unparked by the next write, writers re-check periodically */
+        PARK
+    }
+
+    private static final int YIELD_COUNT = 128;
+    private static final long WRITER_PARK_NANOS = 50_000;
+
     private final AtomicReferenceArray<T> ring;
-    private volatile int head;
-    private final AtomicInteger tail = new AtomicInteger();
-    private final int size;
+    private final int mask;
+    private final Sequence head = new Sequence();
+    private final Sequence tail = new Sequence();
+    private final WaitStrategy waitStrategy;
     private volatile boolean shutdown;
+    private volatile Thread reader; // set while the reader is parked
 
-    private static final boolean SPINS=true;
-    private static final int SPIN_COUNT=128;
+    // striped, as updated concurrently by the writers
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder fullOffers = new LongAdder();
+    private final LongAdder putWaits = new LongAdder();
+    private final LongAdder getWaits = new LongAdder();
+    private final LongAdder drains = new LongAdder();
+    private final LongAdder drained = new LongAdder();
 
-    private final ConcurrentLinkedQueue<Thread> writers = new ConcurrentLinkedQueue<>();
-    private volatile Thread reader;
+    public RingBuffer(int size) {
+        this(size, WaitStrategy.PARK);
+    }
 
-    private volatile long putParks,putFast,putYields;
-    private volatile long getParks,getFast;
+    /**
+     * @param size the minimum capacity, rounded up to a power of two
+     */
+    public RingBuffer(int size, WaitStrategy waitStrategy) {
+        if (size < 1 || size > 1 << 30)
+            throw new IllegalArgumentException("invalid size " + size);
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size)
+            capacity <<= 1;
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
 
-    public RingBuffer(int size){
-        ring = new AtomicReferenceArray<>(size);
-        this.size=size;
+    /**
+     * put an item in the ring buffer without blocking
+     * @return false if the ring buffer is full
+     */
+    public boolean offer(T t) {
+        if (insert(t)) {
+            puts.increment();
+            return true;
+        }
+        fullOffers.increment();
+        return false;
     }
 
-    private boolean offer(T t) {
-        int _tail = tail.get();
-        int _next_tail = next(_tail);
-        if(ring.get(_tail)==null && _next_tail!=head){
-            if(tail.compareAndSet(_tail,_next_tail)){
-                return ring.compareAndSet(_tail,null,t);
+    private boolean insert(T t) {
+        if (t == null)
+            throw new NullPointerException();
+        while (true) {
+            long _tail = tail.get();
+            if (_tail - head.get() > mask)
+                return false;
+            if (tail.compareAndSet(_tail, _tail + 1)) {
+                int index = (int) _tail & mask;
+                if (waitStrategy == WaitStrategy.PARK) {
+                    // a full store, so it is ordered before reading whether the reader is parked
+                    ring.set(index, t);
+                    Thread _reader = reader;
+                    if (_reader != null)
+                        LockSupport.unpark(_reader);
+                } else {
+                    ring.lazySet(index, t);
+                }
+                return true;
             }
         }
-        return false;
     }
 
     /** put an item in the ring buffer, blocking until space is available.
      * @param t the item
-     * @throws InterruptedException if interrupted
+     * @throws InterruptedException if interrupted, or the ring buffer is shutdown
      */
     public void put(T t) throws InterruptedException {
-        Thread writer = Thread.currentThread();
-
-        boolean yielded=false;
-        for(int i=0;SPINS && i<SPIN_COUNT;i++) {
-            if(offer(t)) {
-                putFast++;
-                LockSupport.unpark(reader);
+        if (insert(t)) {
+            puts.increment();
+            return;
+        }
+        putWaits.increment();
+        for (int attempt = 0; ; attempt++) {
+            if (shutdown)
+                throw new InterruptedException("queue shutdown");
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            waitWriter(attempt);
+            if (insert(t)) {
+                puts.increment();
                 return;
             }
-//            LockSupport.parkNanos(1);
-            if(!yielded) {
-                yielded=true;
-                putYields++;
-
-            }
-            Thread.yield();
         }
+    }
 
-        putParks++;
-        writers.add(writer);
-        while(!shutdown) {
-            if(offer(t)) {
-                writers.remove(writer);
-                LockSupport.unpark(reader);
-                return;
-            }
-            LockSupport.park();
+    private void waitWriter(int attempt) {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (attempt < YIELD_COUNT)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+                break;
         }
-        throw new InterruptedException("queue shutdown");
     }
 
-    private T poll() {
-        T tmp = ring.getAndSet(head,null);
-        if(tmp==null)
+    /**
+     * @return the next item without blocking, or null if none is ready. Only the single reader may call it.
+     */
+    public T poll() {
+        long _head = head.get();
+        int index = (int) _head & mask;
+        T t = ring.get(index);
+        if (t == null)
             return null;
-        head=next(head);
-        return tmp;
+        // cleared before the head is advanced, so the slot is empty when a writer can claim it again
+        ring.lazySet(index, null);
+        head.lazySet(_head + 1);
+        return t;
+    }
+
+    /**
+     * pass the ready items to the consumer, in order, advancing the head once for the batch. Only the
+     * single reader may call it. If the consumer throws, the items already passed to it are removed.
+     *
+     * @param max the maximum number of items to drain, limiting how long the slots are held
+     * @return the number of items passed to the consumer
+     */
+    public int drainTo(Consumer<? super T> consumer, int max) {
+        long _head = head.get();
+        int n = 0;
+        try {
+            while (n < max) {
+                int index = (int) (_head + n) & mask;
+                T t = ring.get(index);
+                if (t == null)
+                    break;
+                ring.lazySet(index, null);
+                n++;
+                consumer.accept(t);
+            }
+        } finally {
+            if (n > 0) {
+                head.lazySet(_head + n);
+                drains.increment();
+                drained.add(n);
+            }
+        }
+        return n;
     }
 
     /** returns the next item available from the ring buffer, blocking
      * if not item is ready
      * @return the item
-     * @throws InterruptedException if interrupted
+     * @throws InterruptedException if interrupted, or the ring buffer is shutdown
      */
     public T get() throws InterruptedException {
-        boolean parked=false;
-        reader=Thread.currentThread();
-        while(!shutdown) {
-            T t = poll();
-            if(t!=null) {
-                if(parked) {
-                    getParks++;
-                } else {
-                    getFast++;
-                }
-                reader=null;
-                LockSupport.unpark(writers.peek());
+        T t = poll();
+        if (t != null)
+            return t;
+        getWaits.increment();
+        for (int attempt = 0; ; attempt++) {
+            if (shutdown)
+                throw new InterruptedException("queue shutdown");
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            waitReader(attempt, Long.MAX_VALUE);
+            t = poll();
+            if (t != null)
                 return t;
-            }
-            parked=true;
-            LockSupport.park();
         }
-        throw new InterruptedException("queue shutdown");
     }
+
+    /**
+     * wait for an item to be ready to read, up to the timeout in nanos
+     * @return true if an item is ready
+     */
     public boolean available(long timeout) {
         long deadline = System.nanoTime() + timeout;
-
-        for(int i=0;SPINS && i<SPIN_COUNT;i++) {
-            if (ring.get(head) != null) {
+        for (int attempt = 0; !shutdown; attempt++) {
+            if (ready())
                 return true;
-            }
-            Thread.yield();
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            waitReader(attempt, remaining);
         }
+        return ready();
+    }
 
-        reader = Thread.currentThread();
-        try {
-            while (true) {
-                if (ring.get(head) != null) {
-                    return true;
+    private boolean ready() {
+        return ring.get((int) head.get() & mask) != null;
+    }
+
+    private void waitReader(int attempt, long nanos) {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (attempt < YIELD_COUNT) {
+                    Thread.yield();
+                    break;
                 }
-                long now = System.nanoTime();
-                long diff = deadline-now;
-                if (diff<=0)
-                    return false;
-//            Thread.onSpinWait();
-                LockSupport.parkNanos(diff);
-//                Thread.yield();
-            }
-        } finally {
-            reader=null;
+                reader = Thread.currentThread();
+                try {
+                    // re-checked after publishing the reader, as a writer storing before then did not see it
+                    if (!ready() && !shutdown) {
+                        if (nanos == Long.MAX_VALUE)
+                            LockSupport.park(this);
+                        else
+                            LockSupport.parkNanos(this, nanos);
+                    }
+                } finally {
+                    reader = null;
+                }
+                break;
         }
     }
-    private int next(int index) {
-        return (++index)%size;
+
+    /**
+     * @return the maximum number of items held
+     */
+    public int capacity() {
+        return mask + 1;
     }
 
-    public String debug() {
-        return "put parks "+putParks+", fast "+putFast+", yields "+putYields+", get parks "+getParks+", fast "+getFast;
+    /**
+     * @return the number of items claimed by writers and not yet read, which may change concurrently
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
 
+    /**
+     * @return true if there are no items, including those claimed by a writer but not yet stored
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public String debug() {
+        return "puts " + puts.sum() + ", full offers " + fullOffers.sum() + ", put waits " + putWaits.sum() +
+                ", get waits " + getWaits.sum() + ", drains " + drains.sum() + ", drained " + drained.sum();
     }
+
+    /**
+     * wake the blocked reader and writers, which then throw InterruptedException
+     */
     public void shutdown() {
-        shutdown=true;
+        shutdown = true;
         LockSupport.unpark(reader);
-        for(Thread writer : writers) {
-            LockSupport.unpark(writer);
-            writers.remove(writer);
-        }
     }
 }
@@ -0,0 +1,47 @@
+package com.robaho.jnatsd.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLhsPadding {
+    protected volatile long value;
+}
+
+class SequenceRhsPadding extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
+
+/**
+ * a long counter padded to occupy its own cache line, so the counters written by different threads do
+ * not invalidate each other. The padding is in superclasses, as the JVM may reorder the fields of a
+ * single class.
+ */
+final class Sequence extends SequenceRhsPadding {
+    private static final AtomicLongFieldUpdater<SequenceValue> VALUE = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    long get() {
+        return value;
+    }
+
+    void set(long value) {
+        this.value = value;
+    }
+
+    /**
+     * set without waiting for the store to be visible, while still ordered after the earlier writes
+     */
+    void lazySet(long value) {
+        VALUE.lazySet(this, value);
+    }
+
+    boolean compareAndSet(long expect, long update) {
+        return VALUE.compareAndSet(this, expect, update);
+    }
+
+    public String toString() {
+        return Long.toString(value);
+    }
+}
@@ -0,0 +1,51 @@
+package com.robaho.jnatsd.util;
+
+import java.util.Arrays;
+
+/**
+ * splits a subject on '.' into offset/length pairs over the subject bytes. The instance is reused
+ * across subjects, so tokenizing does not allocate once the arrays have grown to the subject depth.
+ */
+public final class SubjectTokenizer {
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int count;
+
+    /**
+     * @return the number of tokens
+     */
+    public int tokenize(CharSeq subject) {
+        count = 0;
+        int start = 0;
+        int len = subject.length();
+        for (int i = 0; i < len; i++) {
+            if (subject.byteAt(i) == '.') {
+                add(start, i - start);
+                start = i + 1;
+            }
+        }
+        add(start, len - start);
+        return count;
+    }
+
+    private void add(int offset, int length) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = offset;
+        lengths[count++] = length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int offset(int index) {
+        return offsets[index];
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+}
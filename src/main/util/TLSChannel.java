@@ -0,0 +1,317 @@
+package com.robaho.jnatsd.util;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLS over a socket channel using an SSLEngine, so the connection keeps its channel based input and
+ * output. Records are wrapped from the caller's buffers, including the gathered segments of a
+ * ChannelOutputStream, into a direct buffer written to the socket, and unwrapped from a direct buffer
+ * read from the socket.
+ *
+ * The handshake must be performed with the channel blocking. Afterwards the channel may be made
+ * non-blocking, in which case a write may encrypt more than the socket accepts: the remainder is held
+ * and written by the next write or flushBuffered(). A read may decrypt more than fits the caller's
+ * buffer, or leave whole records undecrypted, so the reader must keep reading while hasBufferedInput().
+ *
+ * A single thread reads and a single thread writes at a time, which may be concurrent.
+ */
+public class TLSChannel implements ByteChannel, GatheringByteChannel {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ReentrantLock wrapLock = new ReentrantLock(); // reads may need to send handshake records
+    private ByteBuffer netOut; // encrypted, not yet written. Kept in read mode
+    private ByteBuffer netIn; // read, not yet decrypted. Kept in write mode
+    private ByteBuffer appIn; // decrypted, not yet read. Kept in read mode
+    private boolean inputClosed;
+
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    public TLSChannel(SocketChannel channel, SSLContext context) {
+        this.channel = channel;
+        engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netOut = ByteBuffer.allocateDirect(packetSize);
+        netOut.flip();
+        netIn = ByteBuffer.allocateDirect(packetSize);
+        appIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+    }
+
+    /**
+     * perform the handshake, with the channel blocking
+     */
+    public void handshake() throws IOException {
+        if (!channel.isBlocking())
+            throw new IllegalStateException("the handshake requires a blocking channel");
+        engine.beginHandshake();
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY, 0, 1);
+                    break;
+                case NEED_UNWRAP:
+                    if (unwrap() < 0)
+                        throw new EOFException("closed during handshake");
+                    break;
+                default:
+                    // a server's final handshake records may still be held
+                    flushBuffered();
+                    return;
+            }
+        }
+    }
+
+    /**
+     * @return the protocol and cipher suite negotiated
+     */
+    public String getProtocol() {
+        return engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        while (!appIn.hasRemaining()) {
+            int n = unwrap();
+            if (n < 0 || n == 0 && !channel.isBlocking())
+                return n;
+        }
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer src = appIn.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        appIn.position(appIn.position() + n);
+        return n;
+    }
+
+    /**
+     * @return true if decrypted input or a whole record is held, which the socket's read readiness does
+     * not signal
+     */
+    public boolean hasBufferedInput() {
+        if (appIn.hasRemaining())
+            return true;
+        // a record header is 5 bytes, the length in the last 2
+        if (netIn.position() < 5)
+            return false;
+        int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+        return netIn.position() >= 5 + length;
+    }
+
+    /**
+     * decrypt into appIn, which must be empty, reading from the socket as needed
+     * @return the bytes decrypted, 0 if the non-blocking channel has no complete record or a handshake
+     * record was processed, or -1 at the end
+     */
+    private int unwrap() throws IOException {
+        if (inputClosed)
+            return -1;
+        appIn.clear();
+        try {
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.remaining() == 0)
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        int n = channel.read(netIn);
+                        if (n < 0) {
+                            inputClosed = true;
+                            return -1;
+                        }
+                        if (n == 0)
+                            return 0;
+                        continue;
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        inputClosed = true;
+                        return -1;
+                    default:
+                        break;
+                }
+                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    runHandshake(result.getHandshakeStatus());
+                    return appIn.position();
+                }
+                if (appIn.position() > 0)
+                    return appIn.position();
+            }
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    /**
+     * respond to handshake records received after the handshake, such as a TLS 1.3 key update
+     */
+    private void runHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY, 0, 1);
+            } else {
+                return;
+            }
+            status = engine.getHandshakeStatus();
+        }
+    }
+
+    private void runTasks() {
+        for (Runnable task; (task = engine.getDelegatedTask()) != null; )
+            task.run();
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * encrypt and write the buffers. On a blocking channel everything is written, otherwise encrypting
+     * stops once the socket does not accept a record, see flushBuffered().
+     * @return the bytes encrypted from the buffers
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        wrapLock.lock();
+        try {
+            if (!flushBuffered())
+                return 0;
+            long total = 0;
+            while (true) {
+                long n = wrap(srcs, offset, length);
+                total += n;
+                if (n == 0 || netOut.hasRemaining())
+                    return total;
+            }
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * encrypt a record from the buffers and write it, holding the wrap lock
+     * @return the bytes encrypted
+     */
+    private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        wrapLock.lock();
+        try {
+            netOut.compact();
+            SSLEngineResult result;
+            while (true) {
+                try {
+                    result = engine.wrap(srcs, offset, length, netOut);
+                } catch (SSLException e) {
+                    netOut.flip();
+                    throw e;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+                    break;
+                if (netOut.position() > 0) {
+                    // room is made by writing what is held, rather than growing the buffer
+                    netOut.flip();
+                    boolean written = flushBuffered();
+                    netOut.compact();
+                    if (!written) {
+                        netOut.flip();
+                        return 0;
+                    }
+                } else {
+                    netOut = ByteBuffer.allocateDirect(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2));
+                }
+            }
+            netOut.flip();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0)
+                throw new IOException("TLS session closed");
+            flushBuffered();
+            return result.bytesConsumed();
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * write the encrypted records held. Waits on a blocking channel.
+     * @return true if nothing remains held
+     */
+    public boolean flushBuffered() throws IOException {
+        wrapLock.lock();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0 && !channel.isBlocking())
+                    return false;
+            }
+            return true;
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * @return the encrypted bytes not yet accepted by the socket
+     */
+    public int buffered() {
+        return netOut.remaining();
+    }
+
+    public boolean isBlocking() {
+        return channel.isBlocking();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * close the channel, sending close_notify if the socket accepts it without waiting
+     */
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (!channel.isBlocking() && wrapLock.tryLock()) {
+                try {
+                    if (!netOut.hasRemaining())
+                        wrap(EMPTY, 0, 1);
+                } finally {
+                    wrapLock.unlock();
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return a buffer of at least the size holding the contents, in the same mode
+     */
+    private static ByteBuffer grow(ByteBuffer bb, int size) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(size, bb.capacity() * 2));
+        bb.flip();
+        bigger.put(bb);
+        return bigger;
+    }
+}
@@ -0,0 +1,149 @@
+package com.robaho.jnatsd.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * interns subject tokens as integer identities, so tokens can be compared with ==.
+ *
+ * Lookups are lock free and do not allocate, so they can run on the routing path. Interning
+ * and releasing are synchronized and reference counted, so tokens only live as long as the
+ * subscriptions using them. Identities are never reused.
+ */
+public final class TokenTable {
+    /** the identity of a token that has not been interned */
+    public static final int UNKNOWN = 0;
+    /** the identity of the '*' wildcard */
+    public static final int PWC = 1;
+    /** the identity of the '>' wildcard */
+    public static final int FWC = 2;
+
+    private static final class Token {
+        final byte[] bytes;
+        final int hash;
+        final int id;
+        volatile Token next;
+        int refs;
+
+        Token(byte[] bytes, int hash, int id, Token next) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.id = id;
+            this.next = next;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Token> buckets = new AtomicReferenceArray<>(1024);
+    private final Map<Integer, Token> byId = new HashMap<>();
+    private int nextId = FWC + 1;
+
+    /**
+     * @return the identity of the token s[offset,offset+len), or UNKNOWN if it is not interned
+     */
+    public int lookup(CharSeq s, int offset, int len) {
+        int wildcard = wildcard(s, offset, len);
+        if (wildcard != UNKNOWN)
+            return wildcard;
+        int hash = s.hash(offset, len);
+        AtomicReferenceArray<Token> _buckets = buckets;
+        for (Token t = _buckets.get(hash & (_buckets.length() - 1)); t != null; t = t.next) {
+            if (t.hash == hash && t.bytes.length == len && s.regionEquals(offset, t.bytes))
+                return t.id;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * intern the token s[offset,offset+len), incrementing its reference count
+     * @return the token identity
+     */
+    public synchronized int intern(CharSeq s, int offset, int len) {
+        int wildcard = wildcard(s, offset, len);
+        if (wildcard != UNKNOWN)
+            return wildcard;
+        int hash = s.hash(offset, len);
+        int index = hash & (buckets.length() - 1);
+        for (Token t = buckets.get(index); t != null; t = t.next) {
+            if (t.hash == hash && t.bytes.length == len && s.regionEquals(offset, t.bytes)) {
+                t.refs++;
+                return t.id;
+            }
+        }
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = s.byteAt(offset + i);
+        Token t = new Token(bytes, hash, nextId++, buckets.get(index));
+        t.refs = 1;
+        buckets.set(index, t);
+        byId.put(t.id, t);
+        if (byId.size() > buckets.length())
+            resize();
+        return t.id;
+    }
+
+    /**
+     * decrement the reference count of the token, removing it when no longer referenced
+     */
+    public synchronized void release(int id) {
+        Token t = byId.get(id);
+        if (t == null || --t.refs > 0)
+            return;
+        byId.remove(id);
+        int index = t.hash & (buckets.length() - 1);
+        Token head = buckets.get(index);
+        if (head == t) {
+            buckets.set(index, t.next);
+            return;
+        }
+        for (Token prev = head; prev != null; prev = prev.next) {
+            if (prev.next == t) {
+                prev.next = t.next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of interned tokens
+     */
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return the token bytes as a String, for debugging
+     */
+    public synchronized String toString(int id) {
+        if (id == PWC)
+            return "*";
+        if (id == FWC)
+            return ">";
+        Token t = byId.get(id);
+        return t == null ? "?" : new String(t.bytes);
+    }
+
+    // readers may be traversing the current chains, so the new table is built from copies
+    private void resize() {
+        AtomicReferenceArray<Token> _buckets = new AtomicReferenceArray<>(buckets.length() * 2);
+        for (Token t : byId.values()) {
+            int index = t.hash & (_buckets.length() - 1);
+            Token copy = new Token(t.bytes, t.hash, t.id, _buckets.get(index));
+            copy.refs = t.refs;
+            _buckets.set(index, copy);
+            byId.put(t.id, copy);
+        }
+        buckets = _buckets;
+    }
+
+    private static int wildcard(CharSeq s, int offset, int len) {
+        if (len != 1)
+            return UNKNOWN;
+        byte c = s.byteAt(offset);
+        if (c == '*')
+            return PWC;
+        if (c == '>')
+            return FWC;
+        return UNKNOWN;
+    }
+}
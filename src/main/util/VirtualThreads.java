@@ -0,0 +1,47 @@
+package com.robaho.jnatsd.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * creates virtual threads when the runtime supports them (Java 21+), located reflectively so the
+ * server still builds and runs on older runtimes, where platform threads are used instead.
+ */
+public class VirtualThreads {
+    private static final MethodHandle ofVirtual, name, unstarted;
+
+    static {
+        MethodHandle _ofVirtual = null, _name = null, _unstarted = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            _ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(builder));
+            _name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+            _unstarted = lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException e) {
+            _ofVirtual = null;
+        }
+        ofVirtual = _ofVirtual;
+        name = _name;
+        unstarted = _unstarted;
+    }
+
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * @return an unstarted virtual thread, or a platform thread if virtual threads are not supported
+     */
+    public static Thread newThread(Runnable r, String threadName) {
+        if (ofVirtual == null)
+            return new Thread(r, threadName);
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(), threadName);
+            return (Thread) unstarted.invoke(builder, r);
+        } catch (Throwable t) {
+            throw new IllegalStateException("unable to create virtual thread", t);
+        }
+    }
+}
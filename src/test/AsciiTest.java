@@ -0,0 +1,19 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.Ascii;
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class AsciiTest {
+    @Test
+    public void testPutInt() {
+        byte[] b = new byte[16];
+        int[] values = {0, 7, 10, 99, 100, 101, 12345, 999999, 1000000, 2147483647};
+        for (int v : values) {
+            int end = Ascii.putInt(b, 3, v);
+            assertEquals(String.valueOf(v), new String(b, 3, end - 3));
+            assertEquals(String.valueOf(v).length(), Ascii.digits(v));
+        }
+    }
+}
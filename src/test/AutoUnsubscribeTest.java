@@ -0,0 +1,118 @@
+package com.robaho.jnatsd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class AutoUnsubscribeTest {
+    private Server server;
+
+    @Before
+    public void start() throws IOException {
+        server = newServer();
+        server.start();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        server.stop();
+    }
+
+    private static void publish(Socket pub, String subject, int count) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            sb.append("PUB ").append(subject).append(" 1\r\n").append(i % 10).append("\r\n");
+        roundTrip(pub, sb.toString());
+    }
+
+    private static int count(String s, String text) {
+        int n = 0;
+        for (int i = s.indexOf(text); i >= 0; i = s.indexOf(text, i + 1))
+            n++;
+        return n;
+    }
+
+    @Test
+    public void testMax() throws Exception {
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\nUNSUB 1 3\r\n");
+            publish(pub, "foo", 5);
+            assertEquals(3, count(roundTrip(sub, ""), "MSG foo 1 1\r\n"));
+            for (Connection c : server.getConnections())
+                assertTrue(c.subscriptions.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMaxAlreadyReceived() throws Exception {
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\n");
+            publish(pub, "foo", 3);
+            assertEquals(3, count(roundTrip(sub, "UNSUB 1 2\r\n"), "MSG foo 1 1\r\n"));
+            publish(pub, "foo", 3);
+            assertEquals(0, count(roundTrip(sub, ""), "MSG"));
+            for (Connection c : server.getConnections())
+                assertTrue(c.subscriptions.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSsidReused() throws Exception {
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\nUNSUB 1 1\r\n");
+            publish(pub, "foo", 2);
+            // the ssid is free once the subscription expires, and a maximum for an unknown ssid is ignored
+            String received = roundTrip(sub, "SUB bar 1\r\nUNSUB 2 1\r\n");
+            assertEquals(1, count(received, "MSG foo 1 1\r\n"));
+            publish(pub, "bar", 2);
+            assertEquals(2, count(roundTrip(sub, ""), "MSG bar 1 1\r\n"));
+        }
+    }
+
+    @Test
+    public void testQueueGroup() throws Exception {
+        try (Socket a = connect(server); Socket b = connect(server); Socket pub = connect(server)) {
+            roundTrip(a, "SUB foo workers 1\r\nUNSUB 1 1\r\n");
+            roundTrip(b, "SUB foo workers 1\r\nUNSUB 1 2\r\n");
+            publish(pub, "foo", 5);
+            // an expired member's turn passes to the others, rather than the message being lost
+            assertEquals(1, count(roundTrip(a, ""), "MSG foo 1 1\r\n"));
+            assertEquals(2, count(roundTrip(b, ""), "MSG foo 1 1\r\n"));
+        }
+    }
+
+    @Test
+    public void testConcurrentPublishers() throws Exception {
+        try (Socket sub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\nUNSUB 1 1000\r\n");
+            List<Thread> publishers = new ArrayList<>();
+            List<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Socket pub = connect(server);
+                sockets.add(pub);
+                Thread t = new Thread(() -> {
+                    try {
+                        publish(pub, "foo", 1000);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                t.start();
+                publishers.add(t);
+            }
+            for (Thread t : publishers)
+                t.join();
+            assertEquals(1000, count(roundTrip(sub, ""), "MSG foo 1 1\r\n"));
+            for (Socket s : sockets)
+                s.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.BufferPool;
+import com.robaho.jnatsd.util.CharSeq;
+import org.junit.Test;
+
+import static junit.framework.TestCase.*;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        assertEquals(64, pool.acquire(0).length);
+        assertEquals(64, pool.acquire(64).length);
+        assertEquals(128, pool.acquire(65).length);
+        assertEquals(4096, pool.acquire(4096).length);
+        assertEquals(5000, pool.acquire(5000).length);
+        assertEquals(0, pool.hits());
+        assertEquals(5, pool.misses());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        byte[] b = pool.acquire(100);
+        assertEquals(128, pool.footprint());
+        pool.release(b);
+        assertEquals(128, pool.footprint());
+        assertEquals(128, pool.pooledBytes());
+        assertSame(b, pool.acquire(120));
+        assertEquals(1, pool.hits());
+        assertEquals(0.5, pool.hitRate());
+        assertEquals(0, pool.pooledBytes());
+
+        // oversized arrays are never retained
+        pool.release(pool.acquire(10000));
+        assertEquals(128, pool.footprint());
+    }
+
+    @Test
+    public void testBounded() {
+        // a 64 byte budget per class retains a single array
+        BufferPool pool = new BufferPool(64, 64);
+        byte[] b1 = pool.acquire(10), b2 = pool.acquire(10);
+        pool.release(b1);
+        pool.release(b2);
+        assertEquals(64, pool.footprint());
+        assertSame(b1, pool.acquire(10));
+        assertNotSame(b2, pool.acquire(10));
+    }
+
+    @Test
+    public void testMessageRelease() {
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        byte[] payload = "xxhelloxx".getBytes();
+        InMessage m = InMessage.copyOf(null, new CharSeq("subject"), new CharSeq("reply"), payload, 2, 5, 0, 0, pool);
+        assertEquals(new CharSeq("subject"), m.subject);
+        assertEquals(new CharSeq("reply"), m.reply);
+        assertEquals("hello", new String(m.data, m.offset, m.length));
+        assertEquals("reply 5\r\n", new String(m.data, m.headerOffset, m.headerLength));
+        assertEquals("hello\r\n", new String(m.data, m.offset, m.length + 2));
+        assertEquals(0, pool.pooledBytes());
+
+        m.retain();
+        m.release();
+        assertEquals(0, pool.pooledBytes());
+        m.release();
+        assertEquals(64, pool.pooledBytes());
+
+        m = InMessage.copyOf(null, new CharSeq("subject"), CharSeq.EMPTY, payload, 0, 0, 0, 0, pool);
+        assertEquals(CharSeq.EMPTY, m.reply);
+        assertEquals("0\r\n", new String(m.data, m.headerOffset, m.headerLength));
+        m.release();
+        try {
+            m.release();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
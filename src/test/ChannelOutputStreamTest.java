@@ -0,0 +1,245 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.ChannelOutputStream;
+import com.robaho.jnatsd.util.PendingLimitException;
+import com.robaho.jnatsd.util.RefCounted;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static junit.framework.TestCase.*;
+
+public class ChannelOutputStreamTest {
+    /**
+     * accepts at most limit bytes per write, like a socket with a full send buffer
+     */
+    private static class LimitedChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int limit;
+
+        LimitedChannel(int limit) {
+            this.limit = limit;
+        }
+
+        public int write(ByteBuffer src) {
+            int n = Math.min(limit, src.remaining());
+            for (int i = 0; i < n; i++)
+                written.write(src.get());
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length && n < limit; i++) {
+                ByteBuffer src = srcs[i];
+                while (src.hasRemaining() && n < limit) {
+                    written.write(src.get());
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class Ref implements RefCounted {
+        int refs;
+
+        public void retain() {
+            refs++;
+        }
+
+        public void release() {
+            refs--;
+        }
+    }
+
+    @Test
+    public void testWriteShared() throws Exception {
+        LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        Ref ref = new Ref();
+        byte[] payload = "xxsharedxx".getBytes();
+
+        os.write("MSG a 1 6\r\n".getBytes());
+        os.writeShared(ref, payload, 2, 6);
+        os.write("\r\n".getBytes());
+        os.write("MSG b 1 6\r\n".getBytes());
+        os.writeShared(ref, payload, 2, 6);
+        os.write("\r\n".getBytes());
+        assertEquals(2, ref.refs);
+        assertEquals(38, os.pending());
+
+        os.flush();
+        assertEquals("MSG a 1 6\r\nshared\r\nMSG b 1 6\r\nshared\r\n", channel.written.toString());
+        assertEquals(0, ref.refs);
+        assertEquals(0, os.pending());
+
+        // the buffer is reused once the segments are written
+        os.write("PONG\r\n".getBytes());
+        os.flush();
+        assertEquals("MSG a 1 6\r\nshared\r\nMSG b 1 6\r\nshared\r\nPONG\r\n", channel.written.toString());
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        LimitedChannel channel = new LimitedChannel(5);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        Ref ref = new Ref();
+        byte[] payload = "0123456789".getBytes();
+
+        os.write("head ".getBytes());
+        os.writeShared(ref, payload, 0, 10);
+        os.write(" tail".getBytes());
+
+        StringBuilder expected = new StringBuilder("head 0123456789 tail");
+        assertFalse(os.tryFlush());
+        assertEquals(15, os.pending());
+        assertEquals(1, ref.refs);
+
+        // written while the earlier segments are pending
+        os.write(" more".getBytes());
+        expected.append(" more");
+        while (!os.tryFlush()) {
+        }
+        assertEquals(expected.toString(), channel.written.toString());
+        assertEquals(0, ref.refs);
+        assertEquals(0, os.pending());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        LimitedChannel channel = new LimitedChannel(0);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        Ref ref = new Ref();
+        os.writeShared(ref, new byte[100], 0, 100);
+        assertFalse(os.tryFlush());
+        assertEquals(1, ref.refs);
+        os.discard();
+        assertEquals(0, ref.refs);
+        assertEquals(0, os.pending());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        // a socket accepting nothing, filling the buffer must not wait for it
+        LimitedChannel channel = new LimitedChannel(0);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        Ref ref = new Ref();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            String line = "MSG s " + i + " 2\r\n";
+            os.write(line.getBytes());
+            os.writeShared(ref, "ok\r\n".getBytes(), 0, 4);
+            expected.append(line).append("ok\r\n");
+        }
+        byte[] large = new byte[100];
+        java.util.Arrays.fill(large, (byte) 'x');
+        os.write(large);
+        large[0] = 'y'; // the stream keeps its own copy
+        expected.append(new String(large).replace('y', 'x'));
+        os.write('!');
+        expected.append('!');
+
+        assertEquals(0, channel.written.size());
+        assertEquals(expected.length(), os.pending());
+        assertEquals(20, ref.refs);
+
+        channel.limit = 7;
+        os.flush();
+        assertEquals(expected.toString(), channel.written.toString());
+        assertEquals(0, os.pending());
+        assertEquals(0, ref.refs);
+    }
+
+    @Test
+    public void testSpillReusesBuffers() throws Exception {
+        // a full buffer stays pending as it is, rather than being copied, and is reused once written
+        LimitedChannel channel = new LimitedChannel(0);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        StringBuilder expected = new StringBuilder();
+        for (int round = 0; round < 2; round++) {
+            channel.limit = 0;
+            for (int i = 0; i < 20; i++) {
+                String line = "MSG s " + round + " " + (i % 10) + "\r\n";
+                os.write(line.getBytes());
+                expected.append(line);
+            }
+            assertEquals(expected.length() - channel.written.size(), os.pending());
+            channel.limit = 100;
+            os.flush();
+            assertEquals(expected.toString(), channel.written.toString());
+        }
+        // the first round filled 4 buffers of 5 lines, the second reused them once they were written
+        assertEquals(4, os.buffersAllocated());
+    }
+
+    @Test
+    public void testMaxPending() throws Exception {
+        LimitedChannel channel = new LimitedChannel(0);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64, 100);
+        os.write(new byte[60]);
+        os.write(new byte[40]);
+        assertEquals(100, os.pending());
+        try {
+            os.write(new byte[30]); // beyond the room left in the buffer
+            fail("expected PendingLimitException");
+        } catch (PendingLimitException expected) {
+        }
+        try {
+            os.writeShared(new Ref(), new byte[10], 0, 10);
+            fail("expected PendingLimitException");
+        } catch (PendingLimitException expected) {
+        }
+        assertEquals(100, os.pending());
+
+        // accepted again once the socket drains
+        channel.limit = Integer.MAX_VALUE;
+        assertTrue(os.tryFlush());
+        os.write(new byte[100]);
+        assertEquals(100, os.pending());
+    }
+
+    @Test
+    public void testTakeOutput() throws Exception {
+        LimitedChannel channel = new LimitedChannel(3);
+        ChannelOutputStream os = new ChannelOutputStream(channel, 64);
+        Ref ref = new Ref();
+        os.write("one ".getBytes());
+        os.writeShared(ref, "two ".getBytes(), 0, 4);
+        ChannelOutputStream.Batch batch = os.takeOutput();
+
+        // written into the other buffer while the batch is outstanding
+        os.write("three".getBytes());
+        assertEquals(13, os.pending());
+        try {
+            os.takeOutput();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        batch.write();
+        assertEquals("one two ", channel.written.toString());
+        os.complete(batch);
+        assertEquals(0, ref.refs);
+        assertEquals(5, os.pending());
+
+        batch = os.takeOutput();
+        batch.write();
+        os.complete(batch);
+        assertEquals("one two three", channel.written.toString());
+        assertEquals(0, os.pending());
+    }
+}
@@ -0,0 +1,145 @@
+package com.robaho.jnatsd;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * clients connecting as fast as they can, each reading INFO, optionally upgrading to TLS, and waiting
+ * for the PONG to its first PING before closing. Runs with and without clients that connect and then
+ * stall, which used to hold up the listener.
+ *
+ * usage: ConnectStormBenchmark [seconds per run]. Unless javax.net.ssl.keyStore is set, a self-signed
+ * key is generated with the JDK's keytool.
+ */
+public class ConnectStormBenchmark {
+    private static final int CLIENTS = 8;
+    private static final int[] STALLED = {0, 8}; // fewer than the handshake threads
+    private static int port = 16222;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        if (System.getProperty("javax.net.ssl.keyStore") == null)
+            generateKeyStore();
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[]{new TrustAll()}, null);
+
+        System.out.println(String.format("%-6s %8s %12s %12s", "tls", "stalled", "connects/sec", "timeouts"));
+        for (boolean tls : new boolean[]{false, true}) {
+            for (int stalled : STALLED) {
+                run(tls, stalled, seconds, client);
+            }
+        }
+    }
+
+    private static void run(boolean tls, int nstalled, int seconds, SSLContext client) throws Exception {
+        Server server = new Server(++port);
+        server.setTLSRequired(tls);
+        server.setHandshakeTimeout(2000);
+        server.start();
+        Thread.sleep(250);
+
+        // connect without reading INFO or starting the handshake
+        List<Socket> stalled = new ArrayList<>();
+        for (int i = 0; i < nstalled; i++)
+            stalled.add(new Socket("localhost", port));
+
+        // the first handshakes load and compile the TLS classes, so are excluded
+        for (int i = 0; i < 50; i++)
+            connect(tls, client);
+
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        AtomicLong connects = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        connect(tls, client);
+                        connects.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-6s %8d %12.0f %12d", tls, nstalled, connects.get() / (elapsed / 1e9), server.getHandshakeTimeouts()));
+
+        for (Socket s : stalled)
+            s.close();
+        server.stop();
+        Thread.sleep(500);
+    }
+
+    private static void connect(boolean tls, SSLContext client) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setSoTimeout(10000);
+            readLine(s.getInputStream());
+            Socket c = s;
+            if (tls) {
+                SSLSocket ssl = (SSLSocket) client.getSocketFactory().createSocket(s, "localhost", port, true);
+                ssl.startHandshake();
+                c = ssl;
+            }
+            OutputStream out = c.getOutputStream();
+            out.write("CONNECT {\"verbose\":false}\r\nPING\r\n".getBytes());
+            out.flush();
+            if (!readLine(c.getInputStream()).startsWith("PONG"))
+                throw new IOException("expected PONG");
+            c.close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1)
+                throw new IOException("connection closed");
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    static void generateKeyStore() throws Exception {
+        File keystore = File.createTempFile("jnatsd", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "jnatsd", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", "changeit", "-keypass", "changeit").inheritIO().start();
+        if (p.waitFor() != 0)
+            throw new IOException("keytool failed");
+        System.setProperty("javax.net.ssl.keyStore", keystore.getPath());
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+    }
+
+    static class TrustAll implements X509TrustManager {
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.robaho.jnatsd;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * compares the connection transports as the number of connections grows: the threads, heap and
+ * resident memory used to hold the connections open, and the message throughput when a publisher
+ * fans out across all of them. The subscribers are drained by a single selector thread, so the
+ * client side does not add a thread per connection.
+ *
+ * The threaded transport uses two platform threads per connection, a reader and a writer, so its
+ * thread count is about twice the connections. The virtual transport's readers and writers are
+ * virtual threads, which are not counted.
+ *
+ * usage: ConnectionBenchmark [transport...], defaults to threaded and virtual. The virtual transport
+ * falls back to platform threads before Java 21.
+ */
+public class ConnectionBenchmark {
+    private static final int[] CONNECTIONS = {100, 1000, 5000};
+    private static final int MESSAGES = 200000;
+    private static final int PAYLOAD = 64;
+    private static int port = 14222;
+
+    public static void main(String[] args) throws Exception {
+        List<Server.Transport> transports = new ArrayList<>();
+        for (String arg : args)
+            transports.add(Server.Transport.valueOf(arg.toUpperCase()));
+        if (transports.isEmpty()) {
+            transports.add(Server.Transport.THREADED);
+            transports.add(Server.Transport.VIRTUAL);
+        }
+        System.out.println(String.format("%-10s %8s %8s %10s %10s %12s", "transport", "conns", "threads", "heap KB", "rss KB", "msgs/sec"));
+        for (Server.Transport transport : transports) {
+            for (int connections : CONNECTIONS) {
+                run(transport, connections);
+            }
+        }
+    }
+
+    private static void run(Server.Transport transport, int nconns) throws Exception {
+        Server server = new Server(++port);
+        server.setTransport(transport);
+        server.start();
+        Thread.sleep(250);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long rssBefore = rss();
+        int threadsBefore = Thread.activeCount();
+
+        Selector selector = Selector.open();
+        List<SocketChannel> subscribers = new ArrayList<>();
+        long expected = 0;
+        for (int i = 0; i < nconns; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port));
+            String subject = "bench." + i;
+            send(ch, "CONNECT {}\r\nSUB " + subject + " 1\r\n");
+            subscribers.add(ch);
+            int count = MESSAGES / nconns;
+            expected += (long) count * ("MSG " + subject + " 1 " + PAYLOAD + "\r\n").length() + count * (PAYLOAD + 2L);
+        }
+        expected += nconns * "PONG\r\n".length();
+        SocketChannel publisher = SocketChannel.open(new InetSocketAddress("localhost", port));
+        send(publisher, "CONNECT {}\r\nPING\r\n");
+        awaitPong(publisher);
+        // the subscribes are processed before the PING reply on each connection
+        for (SocketChannel ch : subscribers) {
+            send(ch, "PING\r\n");
+            awaitPong(ch);
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+        }
+
+        System.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+        long rss = rss() - rssBefore;
+        int threads = Thread.activeCount() - threadsBefore;
+
+        StringBuilder sb = new StringBuilder();
+        String payload = new String(new char[PAYLOAD]).replace('\0', 'x');
+        long start = System.nanoTime();
+        Thread pub = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES / nconns; i++) {
+                    sb.setLength(0);
+                    for (int j = 0; j < nconns; j++)
+                        sb.append("PUB bench.").append(j).append(' ').append(PAYLOAD).append("\r\n").append(payload).append("\r\n");
+                    send(publisher, sb.toString());
+                }
+                // once the publisher's PING is answered every message has been routed, and a PING on
+                // each subscriber then flushes anything still buffered
+                send(publisher, "PING\r\n");
+                awaitPong(publisher);
+                for (SocketChannel ch : subscribers)
+                    send(ch, "PING\r\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        pub.start();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long received = 0;
+        while (received < expected) {
+            if (selector.select(10000) == 0)
+                throw new IllegalStateException("timed out, received " + received + " of " + expected + " bytes");
+            for (SelectionKey key : selector.selectedKeys()) {
+                SocketChannel ch = (SocketChannel) key.channel();
+                for (int n; (n = ch.read(buffer)) > 0; buffer.clear())
+                    received += n;
+            }
+            selector.selectedKeys().clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        pub.join();
+
+        System.out.println(String.format("%-10s %8d %8d %10d %10d %12.0f", transport.name().toLowerCase(), nconns,
+                threads, heap / 1024, rss / 1024, (MESSAGES / nconns) * (double) nconns / (elapsed / 1e9)));
+
+        for (SocketChannel ch : subscribers)
+            ch.close();
+        publisher.close();
+        selector.close();
+        server.stop();
+        Thread.sleep(500);
+    }
+
+    private static void send(SocketChannel ch, String s) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(s.getBytes());
+        while (buffer.hasRemaining())
+            ch.write(buffer);
+    }
+
+    private static void awaitPong(SocketChannel ch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (true) {
+            if (ch.read(buffer) < 0)
+                throw new IOException("connection closed");
+            String s = new String(buffer.array(), 0, buffer.position());
+            if (s.contains("PONG\r\n"))
+                return;
+        }
+    }
+
+    /**
+     * @return the resident set size of the process in bytes, or 0 if not available
+     */
+    private static long rss() {
+        try (BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"))) {
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return 0;
+    }
+}
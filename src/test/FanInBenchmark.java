@@ -0,0 +1,123 @@
+package com.robaho.jnatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * many publishers sending to a single subscriber, comparing delivery written directly by each
+ * publisher's reader against delivery queued for the flusher to write.
+ *
+ * usage: FanInBenchmark [transport], defaults to threaded
+ */
+public class FanInBenchmark {
+    private static final int[] PUBLISHERS = {1, 4, 16, 64};
+    private static final int[] DELIVERY_QUEUES = {0, 1024};
+    private static final int MESSAGES = 1000000;
+    private static final int PAYLOAD = 64;
+    private static final int BATCH = 100;
+    private static int port = 15222;
+
+    public static void main(String[] args) throws Exception {
+        Server.Transport transport = args.length > 0 ? Server.Transport.valueOf(args[0].toUpperCase()) : Server.Transport.THREADED;
+        System.out.println(String.format("%-10s %8s %10s %12s", "transport", "pubs", "queue", "msgs/sec"));
+        for (int publishers : PUBLISHERS) {
+            for (int deliveryQueue : DELIVERY_QUEUES) {
+                run(transport, publishers, deliveryQueue);
+            }
+        }
+    }
+
+    private static void run(Server.Transport transport, int npubs, int deliveryQueue) throws Exception {
+        Server server = new Server(++port);
+        server.setTransport(transport);
+        server.setDeliveryQueue(deliveryQueue);
+        // the subscriber falls behind while the publishers are bursting, so it must not be cut off as slow
+        server.setMaxPending(1024L * 1024 * 1024);
+        server.setMaxPendingMsgs(Integer.MAX_VALUE);
+        server.setWriteDeadline(60000);
+        server.start();
+        Thread.sleep(250);
+
+        SocketChannel subscriber = SocketChannel.open(new InetSocketAddress("localhost", port));
+        send(subscriber, "CONNECT {}\r\nSUB fanin 1\r\nPING\r\n");
+        awaitPong(subscriber);
+
+        int count = MESSAGES / npubs / BATCH * BATCH;
+        List<SocketChannel> publishers = new ArrayList<>();
+        for (int i = 0; i < npubs; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port));
+            send(ch, "CONNECT {}\r\nPING\r\n");
+            awaitPong(ch);
+            publishers.add(ch);
+        }
+        long expected = (long) count * npubs * (("MSG fanin 1 " + PAYLOAD + "\r\n").length() + PAYLOAD + 2L);
+
+        StringBuilder sb = new StringBuilder();
+        String payload = new String(new char[PAYLOAD]).replace('\0', 'x');
+        for (int i = 0; i < BATCH; i++)
+            sb.append("PUB fanin ").append(PAYLOAD).append("\r\n").append(payload).append("\r\n");
+        byte[] batch = sb.toString().getBytes();
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (SocketChannel ch : publishers) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count / BATCH; i++)
+                        send(ch, batch);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long received = 0;
+        // the subscriber's output is flushed by the server as it is written, so no PING is needed to drain it
+        while (received < expected) {
+            int n = subscriber.read(buffer);
+            if (n < 0)
+                throw new IOException("connection closed, received " + received + " of " + expected + " bytes");
+            received += n;
+            buffer.clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Thread t : threads)
+            t.join();
+
+        System.out.println(String.format("%-10s %8d %10s %12.0f", transport.name().toLowerCase(), npubs,
+                deliveryQueue == 0 ? "direct" : String.valueOf(deliveryQueue), (double) count * npubs / (elapsed / 1e9)));
+
+        for (SocketChannel ch : publishers)
+            ch.close();
+        subscriber.close();
+        server.stop();
+        Thread.sleep(500);
+    }
+
+    private static void send(SocketChannel ch, String s) throws IOException {
+        send(ch, s.getBytes());
+    }
+
+    private static void send(SocketChannel ch, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            ch.write(buffer);
+    }
+
+    private static void awaitPong(SocketChannel ch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (true) {
+            if (ch.read(buffer) < 0)
+                throw new IOException("connection closed");
+            String s = new String(buffer.array(), 0, buffer.position());
+            if (s.contains("PONG\r\n"))
+                return;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.robaho.jnatsd;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.*;
+
+public class FlushPolicyTest {
+    private static final long US = 1000;
+
+    @Test
+    public void testParse() {
+        assertTrue(FlushPolicy.parse("immediate") instanceof FlushPolicy.Immediate);
+        assertEquals(500 * US, ((FlushPolicy.FixedDelay) FlushPolicy.parse("delay:500")).delay);
+        FlushPolicy.ByteThreshold bytes = (FlushPolicy.ByteThreshold) FlushPolicy.parse("bytes:32768:2000");
+        assertEquals(32768, bytes.threshold);
+        assertEquals(2000 * US, bytes.maxDelay);
+        assertEquals(1000 * US, ((FlushPolicy.Adaptive) FlushPolicy.parse("ADAPTIVE")).maxDelay);
+        for (String invalid : new String[]{"", "delay", "delay:x", "bytes", "immediate:1", "fast"}) {
+            try {
+                FlushPolicy.parse(invalid);
+                fail("expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testDelays() {
+        long t = 1000000;
+        assertEquals(0, FlushPolicy.parse("immediate").delay(t, 10, t));
+
+        FlushPolicy delay = FlushPolicy.parse("delay:500");
+        assertEquals(500 * US, delay.delay(t, 10, t));
+        assertEquals(100 * US, delay.delay(t, 10, t + 400 * US));
+        assertEquals(0, delay.delay(t, 10, t + 600 * US));
+
+        FlushPolicy bytes = FlushPolicy.parse("bytes:1000:2000");
+        assertEquals(2000 * US, bytes.delay(t, 999, t));
+        assertEquals(0, bytes.delay(t, 1000, t));
+        assertEquals(0, bytes.delay(t, 10, t + 2000 * US));
+    }
+
+    @Test
+    public void testAdaptive() {
+        FlushPolicy.Adaptive adaptive = (FlushPolicy.Adaptive) FlushPolicy.parse("adaptive:1000");
+        long t = 1000000;
+        // messages 100us apart, writes costing 10us: flush immediately
+        for (int i = 0; i < 20; i++) {
+            adaptive.onWrite(100, t += 100 * US);
+            adaptive.onFlush(100, 10 * US);
+        }
+        assertEquals(0, adaptive.currentDelay());
+        assertEquals(0, adaptive.delay(t, 100, t));
+
+        // messages 1us apart: batch for a few write costs
+        for (int i = 0; i < 100; i++)
+            adaptive.onWrite(100, t += US);
+        assertEquals(40 * US, adaptive.currentDelay());
+        assertEquals(30 * US, adaptive.delay(t, 100, t + 10 * US));
+
+        // never more than the maximum
+        for (int i = 0; i < 100; i++)
+            adaptive.onFlush(100, 1000 * US);
+        assertEquals(1000 * US, adaptive.currentDelay());
+    }
+}
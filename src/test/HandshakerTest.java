@@ -0,0 +1,66 @@
+package com.robaho.jnatsd;
+
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class HandshakerTest {
+    private static final long TIMEOUT = 500;
+    private static final long TLS_TIMEOUT = 3000; // allowing for the first handshake to initialize TLS
+
+    private static Server start(Server.Transport transport, boolean tls, long timeout) throws Exception {
+        Server server = newServer();
+        server.setTransport(transport);
+        server.setTLSRequired(tls);
+        server.setHandshakeTimeout(timeout);
+        server.start();
+        return server;
+    }
+
+    /**
+     * assert the server closes the socket once the handshake timeout expires
+     */
+    private static void assertExpires(Server server, Socket s, long start, long timeout) throws Exception {
+        assertEquals(-1, s.getInputStream().read());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(String.valueOf(elapsed), elapsed >= timeout / 2);
+        assertEquals(1, server.getHandshakeTimeouts());
+    }
+
+    @Test
+    public void testNoConnect() throws Exception {
+        for (Server.Transport transport : new Server.Transport[]{Server.Transport.THREADED, Server.Transport.NIO}) {
+            Server server = start(transport, false, TIMEOUT);
+            long start = System.nanoTime(); // the expiry is scheduled once the socket is accepted
+            try (Socket idle = open(server); Socket client = connect(server)) {
+                readUntil(idle, "\r\n"); // INFO, but no CONNECT follows
+                assertExpires(server, idle, start, TIMEOUT);
+                // a client that sent CONNECT is established, so stays open
+                assertEquals("PONG\r\n", roundTrip(client, ""));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testStalledTLS() throws Exception {
+        useTestKeyStore();
+        Server server = start(Server.Transport.THREADED, true, TLS_TIMEOUT);
+        // the client first, so its handshake does not count against the stalled socket's timeout
+        try (Socket client = connectTLS(server)) {
+            long start = System.nanoTime();
+            try (Socket stalled = open(server)) {
+                readUntil(stalled, "\r\n"); // INFO, but the handshake is never started
+                assertExpires(server, stalled, start, TLS_TIMEOUT);
+            }
+            assertEquals("PONG\r\n", roundTrip(client, ""));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.BufferPool;
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.Headers;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.Arrays;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class HeadersTest {
+    private static final String BLOCK = "NATS/1.0\r\nNats-Msg-Id: abc \r\ntrace-id:1\r\n\r\n";
+
+    private static CharSeq get(String block, String name) {
+        byte[] b = ("xx" + block).getBytes();
+        return Headers.get(b, 2, b.length - 2, name);
+    }
+
+    private static int status(String block) {
+        byte[] b = block.getBytes();
+        return Headers.status(b, 0, b.length);
+    }
+
+    @Test
+    public void testGet() {
+        assertEquals(new CharSeq("abc"), get(BLOCK, "Nats-Msg-Id"));
+        assertEquals(new CharSeq("abc"), get(BLOCK, "nats-msg-id"));
+        assertEquals(new CharSeq("1"), get(BLOCK, "Trace-Id"));
+        assertNull(get(BLOCK, "Nats-Msg"));
+        assertNull(get(BLOCK, "NATS/1.0"));
+        assertNull(get("NATS/1.0\r\n\r\nId: 1\r\n", "Id"));
+        assertNull(get("NATS/1.0", "Id"));
+    }
+
+    @Test
+    public void testStatus() {
+        assertEquals(0, status(BLOCK));
+        assertEquals(503, status("NATS/1.0 503\r\n\r\n"));
+        assertEquals(408, status("NATS/1.0 408 Request Timeout\r\n\r\n"));
+        assertEquals(0, status("NATS/1.0 50\r\n\r\n"));
+        assertEquals(0, status("NATS/2.0 503\r\n\r\n"));
+        assertEquals(0, status("NATS"));
+    }
+
+    @Test
+    public void testMessage() {
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        byte[] payload = ("x" + BLOCK + "hello").getBytes();
+        InMessage m = InMessage.copyOf(null, new CharSeq("subject"), new CharSeq("reply"), payload, 1, payload.length - 1, BLOCK.length(), 0, pool);
+        assertEquals(new CharSeq("reply"), m.reply);
+        assertEquals("reply 5\r\n", new String(m.data, m.headerOffset, m.headerLength));
+        assertEquals("reply 43 48\r\n", new String(m.data, m.hmsgHeaderOffset, m.hmsgHeaderLength));
+        assertEquals("hello\r\n", new String(m.data, m.offset, m.length + 2));
+        assertEquals(BLOCK + "hello\r\n", new String(m.data, m.offset - m.hdrLength, m.hdrLength + m.length + 2));
+        assertEquals(new CharSeq("abc"), m.header("Nats-Msg-Id"));
+        assertEquals(0, m.status());
+        m.release();
+
+        m = InMessage.copyOf(null, new CharSeq("subject"), CharSeq.EMPTY, payload, 0, 0, 0, 0, pool);
+        assertNull(m.header("Nats-Msg-Id"));
+        assertEquals(0, m.hmsgHeaderLength);
+        m.release();
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        Server server = newServer();
+        server.start();
+        try (Socket s = open(server)) {
+            String info = readUntil(s, "\r\n");
+            assertTrue(info, info.contains("\"headers\":true"));
+        }
+        try (Socket headers = connect(server, "{\"verbose\":false,\"headers\":true}"); Socket plain = connect(server, "{\"verbose\":false}");
+             Socket pub = connect(server, "{\"verbose\":false,\"headers\":true}")) {
+            roundTrip(headers, "SUB foo 1\r\n");
+            roundTrip(plain, "SUB foo 2\r\n");
+            roundTrip(pub, "HPUB foo reply " + BLOCK.length() + " " + (BLOCK.length() + 5) + "\r\n" + BLOCK + "hello\r\n" +
+                    "PUB foo 3\r\nbye\r\n");
+            assertEquals("HMSG foo 1 reply 43 48\r\n" + BLOCK + "hello\r\nMSG foo 1 3\r\nbye\r\nPONG\r\n", roundTrip(headers, ""));
+            // the headers are stripped for a connection that does not accept them
+            assertEquals("MSG foo 2 reply 5\r\nhello\r\nMSG foo 2 3\r\nbye\r\nPONG\r\n", roundTrip(plain, ""));
+
+            // larger payloads are written from the message's buffer
+            char[] chars = new char[256 * 1024];
+            Arrays.fill(chars, 'a');
+            String large = new String(chars);
+            roundTrip(pub, "HPUB foo " + BLOCK.length() + " " + (BLOCK.length() + large.length()) + "\r\n" + BLOCK + large + "\r\n");
+            assertEquals("HMSG foo 1 43 " + (43 + large.length()) + "\r\n" + BLOCK + large + "\r\nPONG\r\n", roundTrip(headers, ""));
+            assertEquals("MSG foo 2 " + large.length() + "\r\n" + large + "\r\nPONG\r\n", roundTrip(plain, ""));
+        } finally {
+            server.stop();
+        }
+    }
+}
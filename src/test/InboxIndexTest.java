@@ -0,0 +1,109 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import org.junit.Test;
+
+import java.net.Socket;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class InboxIndexTest {
+    private static Subscription sub(String subject) {
+        return new Subscription(null, 1, subject, "");
+    }
+
+    private static boolean matches(String pattern, String subject) {
+        return InboxIndex.matches(sub(pattern), new CharSeq(subject));
+    }
+
+    @Test
+    public void testIsInbox() {
+        assertTrue(InboxIndex.isInbox(sub("_INBOX.abc")));
+        assertTrue(InboxIndex.isInbox(sub("_INBOX.abc.*")));
+        assertTrue(InboxIndex.isInbox(sub("_INBOX.abc.>")));
+        assertTrue(InboxIndex.isInbox(sub("_INBOX.abc.def")));
+        assertFalse(InboxIndex.isInbox(sub("_INBOX")));
+        assertFalse(InboxIndex.isInbox(sub("_INBOX.*")));
+        assertFalse(InboxIndex.isInbox(sub("_INBOX.>")));
+        assertFalse(InboxIndex.isInbox(sub("_INBOXES.abc")));
+        assertFalse(InboxIndex.isInbox(new Subscription(null, 1, "_INBOX.abc.*", "group")));
+
+        assertTrue(InboxIndex.mayMatchInbox(sub(">")));
+        assertTrue(InboxIndex.mayMatchInbox(sub("*.abc.*")));
+        assertTrue(InboxIndex.mayMatchInbox(sub("_INBOX.*")));
+        assertFalse(InboxIndex.mayMatchInbox(sub("foo.>")));
+
+        assertTrue(InboxIndex.isInboxSubject(new CharSeq("_INBOX.abc.1")));
+        assertFalse(InboxIndex.isInboxSubject(new CharSeq("_INBOX.")));
+        assertFalse(InboxIndex.isInboxSubject(new CharSeq("foo._INBOX.abc")));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(matches("_INBOX.abc", "_INBOX.abc"));
+        assertFalse(matches("_INBOX.abc", "_INBOX.abc.1"));
+        assertTrue(matches("_INBOX.abc.*", "_INBOX.abc.1"));
+        assertFalse(matches("_INBOX.abc.*", "_INBOX.abc"));
+        assertFalse(matches("_INBOX.abc.*", "_INBOX.abc.1.2"));
+        assertFalse(matches("_INBOX.abc.*", "_INBOX.abc."));
+        assertTrue(matches("_INBOX.abc.>", "_INBOX.abc.1"));
+        assertTrue(matches("_INBOX.abc.>", "_INBOX.abc.1.2"));
+        assertFalse(matches("_INBOX.abc.>", "_INBOX.abc"));
+        assertTrue(matches("_INBOX.abc.def", "_INBOX.abc.def"));
+        assertFalse(matches("_INBOX.abc.def", "_INBOX.abc.deg"));
+        assertFalse(matches("_INBOX.abc.def", "_INBOX.abc.de"));
+        assertTrue(matches("_INBOX.abc.*.x", "_INBOX.abc.1.x"));
+        assertFalse(matches("_INBOX.abc.*.x", "_INBOX.abc.1.y"));
+    }
+
+    @Test
+    public void testAddRemove() {
+        InboxIndex index = new InboxIndex();
+        Subscription a = sub("_INBOX.abc.*"), b = sub("_INBOX.abc"), c = sub("_INBOX.xyz.*");
+        index.add(a);
+        index.add(b);
+        index.add(c);
+        assertEquals(3, index.count());
+        assertEquals(2, index.get(new CharSeq("_INBOX.abc.1")).length);
+        assertEquals(2, index.get(new CharSeq("_INBOX.abc")).length);
+        assertNull(index.get(new CharSeq("_INBOX.def.1")));
+
+        index.remove(a);
+        assertSame(b, index.get(new CharSeq("_INBOX.abc.1"))[0]);
+        index.remove(b);
+        assertNull(index.get(new CharSeq("_INBOX.abc.1")));
+        index.remove(b);
+        assertEquals(1, index.count());
+    }
+
+    @Test
+    public void testReplies() throws Exception {
+        Server server = newServer();
+        server.start();
+        try (Socket requester = connect(server); Socket responder = connect(server)) {
+            roundTrip(requester, "SUB _INBOX.abc.* 1\r\nSUB _INBOX.def 2\r\nUNSUB 2 1\r\n");
+            roundTrip(responder, "PUB _INBOX.abc.1 5\r\nreply\r\nPUB _INBOX.def 3\r\none\r\nPUB _INBOX.def 3\r\ntwo\r\n" +
+                    "PUB _INBOX.abc 2\r\nno\r\nPUB _INBOX.abc.1.2 2\r\nno\r\n");
+            assertEquals("MSG _INBOX.abc.1 1 5\r\nreply\r\nMSG _INBOX.def 2 3\r\none\r\nPONG\r\n", roundTrip(requester, ""));
+            // replies do not use the match cache
+            assertEquals(0, server.getCacheSize());
+
+            // unless a subscription in the sublist may also match them
+            try (Socket monitor = connect(server)) {
+                roundTrip(monitor, "SUB > 9\r\n");
+                roundTrip(responder, "PUB _INBOX.abc.2 5\r\nreply\r\n");
+                assertEquals("MSG _INBOX.abc.2 1 5\r\nreply\r\nPONG\r\n", roundTrip(requester, ""));
+                assertEquals("MSG _INBOX.abc.2 9 5\r\nreply\r\nPONG\r\n", roundTrip(monitor, ""));
+                assertEquals(1, server.getCacheSize());
+            }
+            // the monitor's subscription is removed as it closes
+            Thread.sleep(100);
+            roundTrip(responder, "PUB _INBOX.abc.3 5\r\nreply\r\n");
+            assertEquals("MSG _INBOX.abc.3 1 5\r\nreply\r\nPONG\r\n", roundTrip(requester, ""));
+            assertEquals(1, server.getCacheSize());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.IntObjectMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class IntObjectMapTest {
+    @Test
+    public void testAgainstHashMap() {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            int key = r.nextInt(1000);
+            if (r.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = 0; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
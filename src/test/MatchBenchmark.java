@@ -0,0 +1,84 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.SubjectTokenizer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * measures the cache miss path: tokenizing a published subject the old way (regex split into
+ * a throwaway Subscription) against SubjectTokenizer and token lookup, and the full Sublist match
+ */
+public class MatchBenchmark {
+    private static final long DURATION_MS = 2000;
+    private static final Pattern dot = Pattern.compile("\\.");
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Op {
+        int run(CharSeq subject);
+    }
+
+    public static void main(String[] args) {
+        Sublist sublist = new Sublist();
+        for (int i = 0; i < 10000; i++) {
+            sublist.insert(new Subscription(null, i, "orders." + (i % 100) + ".region" + (i % 7) + ".*", ""));
+        }
+        sublist.insert(new Subscription(null, 0, "orders.>", ""));
+
+        CharSeq[] subjects = new CharSeq[1024];
+        for (int i = 0; i < subjects.length; i++) {
+            subjects[i] = new CharSeq("orders." + (i % 100) + ".region" + (i % 7) + ".item" + i);
+        }
+
+        SubjectTokenizer tokenizer = new SubjectTokenizer();
+        int[] tokens = new int[16];
+
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1; // first pass is warmup
+            run("regex split (before)", subjects, report, subject -> {
+                String[] segments = dot.split(subject);
+                CharSeq[] seqs = new CharSeq[segments.length];
+                for (int i = 0; i < segments.length; i++)
+                    seqs[i] = new CharSeq(segments[i]);
+                return seqs.length;
+            });
+            run("tokenizer + lookup (after)", subjects, report, subject -> {
+                int count = tokenizer.tokenize(subject);
+                for (int i = 0; i < count; i++)
+                    tokens[i] = Subscription.tokenTable.lookup(subject, tokenizer.offset(i), tokenizer.length(i));
+                return count;
+            });
+            List<Subscription> psubs = new ArrayList<>();
+            Map<CharSeq, List<Subscription>> groups = new HashMap<>();
+            run("sublist match", subjects, report, subject -> {
+                psubs.clear();
+                sublist.match(subject, psubs, groups);
+                return psubs.size();
+            });
+        }
+    }
+
+    private static void run(String name, CharSeq[] subjects, boolean report, Op op) {
+        long ops = 0, sink = 0;
+        long tid = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < DURATION_MS * 1000000) {
+            for (int i = 0; i < 1024; i++)
+                sink += op.run(subjects[i]);
+            ops += 1024;
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+        if (report) {
+            System.out.printf("%-28s %8.1f ns/op %8.1f bytes/op (%d)%n", name, (double) elapsed / ops, (double) allocated / ops, sink % 10);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.robaho.jnatsd;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class NoRespondersTest {
+    private static final String OPTIONS = "{\"verbose\":false,\"headers\":true,\"no_responders\":true}";
+    private static final String STATUS = "16 16\r\nNATS/1.0 503\r\n\r\n\r\n";
+    private Server server;
+
+    @Before
+    public void start() throws IOException {
+        server = newServer();
+        server.start();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        server.stop();
+    }
+
+    @Test
+    public void testNoResponders() throws Exception {
+        try (Socket requester = connect(server, OPTIONS)) {
+            roundTrip(requester, "SUB _INBOX.abc.* 1\r\nSUB reply.> 2\r\n");
+            assertEquals("HMSG _INBOX.abc.1 1 " + STATUS + "PONG\r\n", roundTrip(requester, "PUB service _INBOX.abc.1 2\r\nhi\r\n"));
+            // a reply subject that is not an inbox, and a request with headers
+            assertEquals("HMSG reply.a.b 2 " + STATUS + "PONG\r\n",
+                    roundTrip(requester, "HPUB service reply.a.b 12 14\r\nNATS/1.0\r\n\r\nhi\r\n"));
+            // not a request, or no subscription for the reply subject
+            assertEquals("PONG\r\n", roundTrip(requester, "PUB service 2\r\nhi\r\nPUB service other 2\r\nhi\r\n"));
+        }
+    }
+
+    @Test
+    public void testResponders() throws Exception {
+        try (Socket requester = connect(server, OPTIONS); Socket responder = connect(server, OPTIONS); Socket monitor = connect(server, OPTIONS)) {
+            roundTrip(requester, "SUB _INBOX.abc.* 1\r\n");
+            roundTrip(responder, "SUB service workers 1\r\n");
+            roundTrip(requester, "PUB service _INBOX.abc.1 2\r\nhi\r\n");
+            assertEquals("MSG service 1 _INBOX.abc.1 2\r\nhi\r\nPONG\r\n", roundTrip(responder, ""));
+            assertEquals("PONG\r\n", roundTrip(requester, ""));
+
+            // a subscription for the subject in another form, while replies also route through the sublist
+            roundTrip(responder, "UNSUB 1\r\n");
+            roundTrip(monitor, "SUB > 9\r\n");
+            roundTrip(requester, "PUB other _INBOX.abc.2 2\r\nhi\r\n");
+            assertEquals("MSG other 9 _INBOX.abc.2 2\r\nhi\r\nPONG\r\n", roundTrip(monitor, ""));
+            assertEquals("PONG\r\n", roundTrip(requester, ""));
+        }
+    }
+
+    @Test
+    public void testNotRequested() throws Exception {
+        // both options are needed, as the status is a header
+        for (String options : new String[]{"{\"verbose\":false,\"headers\":true}", "{\"verbose\":false,\"no_responders\":true}"}) {
+            try (Socket requester = connect(server, options)) {
+                roundTrip(requester, "SUB _INBOX.abc.* 1\r\n");
+                assertEquals(options, "PONG\r\n", roundTrip(requester, "PUB service _INBOX.abc.1 2\r\nhi\r\n"));
+            }
+        }
+    }
+
+    @Test
+    public void testAutoUnsubscribe() throws Exception {
+        try (Socket requester = connect(server, OPTIONS)) {
+            // an inbox subscribed for a single reply is satisfied by the status
+            roundTrip(requester, "SUB _INBOX.abc 1\r\nUNSUB 1 1\r\n");
+            assertEquals("HMSG _INBOX.abc 1 " + STATUS + "PONG\r\n", roundTrip(requester, "PUB service _INBOX.abc 2\r\nhi\r\n"));
+            assertEquals("PONG\r\n", roundTrip(requester, "PUB service _INBOX.abc 2\r\nhi\r\n"));
+            for (Connection c : server.getConnections())
+                assertTrue(c.subscriptions.isEmpty());
+        }
+    }
+}
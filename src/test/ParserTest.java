@@ -0,0 +1,193 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public class ParserTest {
+    private static class Recorder implements Parser.Handler {
+        final List<String> events = new ArrayList<>();
+
+        public void onPub(CharSeq subject, CharSeq reply, byte[] payload, int offset, int length, int hdrLength) {
+            if (hdrLength > 0)
+                events.add("HPUB " + subject + " " + reply + " " + new String(payload, offset, hdrLength) + "|" +
+                        new String(payload, offset + hdrLength, length - hdrLength));
+            else
+                events.add("PUB " + subject + " " + reply + " " + new String(payload, offset, length));
+        }
+
+        public void onSub(CharSeq subject, CharSeq group, int ssid) {
+            events.add("SUB " + subject + " " + group + " " + ssid);
+        }
+
+        public void onUnsub(int ssid, int max) {
+            events.add("UNSUB " + ssid + (max > 0 ? " " + max : ""));
+        }
+
+        public void onPing() {
+            events.add("PING");
+        }
+
+        public void onPong() {
+            events.add("PONG");
+        }
+
+        public void onConnect(CharSeq options) {
+            events.add("CONNECT " + options);
+        }
+
+        public void onError(Exception e) {
+            events.add("ERR " + e.getMessage());
+        }
+    }
+
+    private static final String STREAM = "CONNECT {\"verbose\": false, \"name\": \"a b\"}\r\n" +
+            "sub foo 1\r\nSUB bar queue 22\r\nPING\r\nPUB foo 5\r\nhello\r\n" +
+            "PUB foo reply.1 11\r\nhello world\r\npub foo 0\r\n\r\nPONG\r\nUNSUB 22\r\nunsub 1 5\r\n" +
+            "HPUB foo 19 24\r\nNATS/1.0\r\nId: 1\r\n\r\nhello\r\nhpub foo reply.2 12 12\r\nNATS/1.0\r\n\r\n\r\n";
+
+    private static final List<String> EXPECTED = Arrays.asList(
+            "CONNECT {\"verbose\": false, \"name\": \"a b\"}",
+            "SUB foo  1", "SUB bar queue 22", "PING", "PUB foo  hello",
+            "PUB foo reply.1 hello world", "PUB foo  ", "PONG", "UNSUB 22", "UNSUB 1 5",
+            "HPUB foo  NATS/1.0\r\nId: 1\r\n\r\n|hello", "HPUB foo reply.2 NATS/1.0\r\n\r\n|");
+
+    private static List<String> parse(String stream, int chunk) throws IOException {
+        Recorder recorder = new Recorder();
+        Parser parser = new Parser(recorder, 1024 * 1024);
+        byte[] bytes = stream.getBytes();
+        for (int i = 0; i < bytes.length; i += chunk) {
+            // copy each chunk, so the parser cannot rely on earlier bytes remaining in the buffer
+            byte[] buf = new byte[chunk + 2];
+            Arrays.fill(buf, (byte) 'X');
+            int len = Math.min(chunk, bytes.length - i);
+            System.arraycopy(bytes, i, buf, 1, len);
+            parser.parse(buf, 1, len);
+        }
+        return recorder.events;
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        assertEquals(EXPECTED, parse(STREAM, STREAM.length()));
+    }
+
+    @Test
+    public void testSplitReads() throws IOException {
+        for (int chunk = 1; chunk < STREAM.length(); chunk++) {
+            assertEquals("chunk " + chunk, EXPECTED, parse(STREAM, chunk));
+        }
+    }
+
+    @Test
+    public void testReusedBuffer() throws IOException {
+        // a reader fills the same buffer on every read, so a PUB whose control line ends one read must
+        // not refer to it when the payload arrives in the next
+        Recorder recorder = new Recorder();
+        Parser parser = new Parser(recorder, 1024 * 1024);
+        byte[] bytes = STREAM.getBytes();
+        byte[] buf = new byte[bytes.length];
+        for (int chunk = 1; chunk < bytes.length; chunk++) {
+            recorder.events.clear();
+            for (int i = 0; i < bytes.length; i += chunk) {
+                int len = Math.min(chunk, bytes.length - i);
+                System.arraycopy(bytes, i, buf, 0, len);
+                parser.parse(buf, 0, len);
+                Arrays.fill(buf, (byte) 'X');
+            }
+            assertEquals("chunk " + chunk, EXPECTED, recorder.events);
+        }
+        // split exactly after each control line
+        recorder.events.clear();
+        String[] reads = {"PUB foo 5\r\n", "hello\r\nPUB foo reply.1 11\r\n", "hello world\r\n"};
+        for (String read : reads) {
+            byte[] b = read.getBytes();
+            System.arraycopy(b, 0, buf, 0, b.length);
+            parser.parse(buf, 0, b.length);
+            Arrays.fill(buf, (byte) 'X');
+        }
+        assertEquals(Arrays.asList("PUB foo  hello", "PUB foo reply.1 hello world"), recorder.events);
+    }
+
+    @Test
+    public void testLargePayload() throws IOException {
+        char[] chars = new char[200000];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = (char) ('a' + i % 26);
+        String payload = new String(chars);
+        String stream = "PUB big " + payload.length() + "\r\n" + payload + "\r\nPING\r\n";
+        List<String> expected = Arrays.asList("PUB big  " + payload, "PING");
+        assertEquals(expected, parse(stream, stream.length()));
+        assertEquals(expected, parse(stream, 4096));
+        assertEquals(expected, parse(stream, 7));
+    }
+
+    @Test
+    public void testUnknownOperation() throws IOException {
+        String stream = "PUX foo\r\nFOO\r\nPING\r\nSUB foo\r\nSUB foo bar\r\nPING\r\nUNSUB 1 x\r\nUNSUB 1 2 3\r\n";
+        List<String> expected = Arrays.asList("ERR Unknown Protocol Operation", "ERR Unknown Protocol Operation",
+                "PING", "ERR Invalid Subscription", "ERR Invalid Subscription", "PING", "ERR Invalid Unsubscribe",
+                "ERR Invalid Unsubscribe");
+        for (int chunk = 1; chunk <= stream.length(); chunk++) {
+            assertEquals(expected, parse(stream, chunk));
+        }
+    }
+
+    @Test
+    public void testInvalidPayload() {
+        try {
+            parse("PUB foo x\r\n", 64);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        try {
+            parse("PUB foo 3\r\nabcd\r\n", 64);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        try {
+            parse("HPUB foo 6 5\r\nabcde\r\n", 64);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        try {
+            parse("HPUB foo 5\r\nabcde\r\n", 64);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        try {
+            new Parser(new Recorder(), 10).parse("PUB foo 11\r\n".getBytes(), 0, 12);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testLineTooLong() {
+        char[] chars = new char[Parser.MAX_CONTROL_LINE * 2];
+        Arrays.fill(chars, 'a');
+        String stream = "SUB " + new String(chars) + " 1\r\n";
+        try {
+            parse(stream, 100);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testParseInt() {
+        byte[] b = "0 123 99999999 1x -1".getBytes();
+        assertEquals(0, Parser.parseInt(b, 0, 1));
+        assertEquals(123, Parser.parseInt(b, 2, 3));
+        assertEquals(99999999, Parser.parseInt(b, 6, 8));
+        assertEquals(-1, Parser.parseInt(b, 15, 2));
+        assertEquals(-1, Parser.parseInt(b, 18, 2));
+        assertEquals(-1, Parser.parseInt(b, 0, 0));
+    }
+}
@@ -0,0 +1,142 @@
+package com.robaho.jnatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * a burst of clients all connecting at once, as after a deploy, each reading INFO and waiting for the
+ * PONG to its first PING. Reports the time until every client is established, and the latency of each,
+ * for a number of acceptors and listen backlogs. A connection whose SYN was dropped is retried by the
+ * client's kernel after a second or more, which shows in the slowest connects. One whose final ACK was
+ * dropped, because the accept queue was full, appears connected to the client but never receives INFO,
+ * so is counted as failed once the run's deadline passes.
+ *
+ * The clients are driven by a single selector, so the burst is not limited by client threads.
+ *
+ * usage: ReconnectStormBenchmark [clients]
+ */
+public class ReconnectStormBenchmark {
+    private static final int[] ACCEPTORS = {1, 4};
+    private static final int[] BACKLOGS = {128, 4096};
+    private static final long DEADLINE = 20000000000L; // nanos, beyond a few SYN retries
+    private static final byte[] HELLO = "CONNECT {\"verbose\":false}\r\nPING\r\n".getBytes();
+    private static int port = 18222;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        System.out.println(String.format("%9s %8s %8s %10s %8s %8s %8s %8s %8s", "acceptors", "backlog", "clients", "total ms", "p50 ms", "p99 ms", "max ms", ">1s", "failed"));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the jit
+            for (int acceptors : ACCEPTORS) {
+                for (int backlog : BACKLOGS) {
+                    run(acceptors, backlog, clients, round == 1);
+                }
+            }
+        }
+    }
+
+    private static class Client {
+        final SocketChannel ch;
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+        boolean sentHello;
+
+        Client(SocketChannel ch) {
+            this.ch = ch;
+        }
+    }
+
+    private static void run(int acceptors, int backlog, int nclients, boolean print) throws Exception {
+        Server server = new Server(++port);
+        server.setTransport(Server.Transport.NIO);
+        server.setAcceptors(acceptors);
+        server.setBacklog(backlog);
+        server.setHandshakeTimeout(60000);
+        server.start();
+        Thread.sleep(250);
+
+        Selector selector = Selector.open();
+        Client[] clients = new Client[nclients];
+        long[] latencies = new long[nclients];
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < nclients; i++) {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            clients[i] = new Client(ch);
+            if (ch.connect(address))
+                ch.register(selector, SelectionKey.OP_READ, i);
+            else
+                ch.register(selector, SelectionKey.OP_CONNECT, i);
+        }
+
+        int established = 0, failed = 0;
+        long deadline = start + DEADLINE;
+        while (established + failed < nclients && System.nanoTime() < deadline) {
+            selector.select(1000);
+            for (SelectionKey key : selector.selectedKeys()) {
+                int i = (Integer) key.attachment();
+                Client c = clients[i];
+                try {
+                    if (key.isConnectable()) {
+                        c.ch.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        continue;
+                    }
+                    if (c.ch.read(c.in) < 0)
+                        throw new IOException("connection closed by server");
+                } catch (IOException e) {
+                    failed++;
+                    key.cancel();
+                    continue;
+                }
+                if (!c.sentHello && hasLine(c.in)) {
+                    // INFO
+                    c.in.clear();
+                    c.sentHello = true;
+                    c.ch.write(ByteBuffer.wrap(HELLO));
+                } else if (c.sentHello && hasLine(c.in)) {
+                    // PONG
+                    latencies[i] = System.nanoTime() - start;
+                    established++;
+                    key.cancel();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        failed = nclients - established;
+
+        if (print && established > 0) {
+            // the latencies of the established clients, the others are still 0
+            Arrays.sort(latencies);
+            long[] sorted = Arrays.copyOfRange(latencies, failed, nclients);
+            int slow = 0;
+            for (long latency : sorted) {
+                if (latency > 1000000000L)
+                    slow++;
+            }
+            System.out.println(String.format("%9d %8d %8d %10.0f %8.1f %8.1f %8.1f %8d %8d", acceptors, backlog, nclients, elapsed / 1e6,
+                    sorted[established / 2] / 1e6, sorted[established * 99 / 100] / 1e6, sorted[established - 1] / 1e6, slow, failed));
+        }
+
+        for (Client c : clients)
+            c.ch.close();
+        selector.close();
+        server.stop();
+        Thread.sleep(1000);
+    }
+
+    private static boolean hasLine(ByteBuffer bb) {
+        for (int i = 0; i < bb.position(); i++) {
+            if (bb.get(i) == '\n')
+                return true;
+        }
+        return false;
+    }
+}
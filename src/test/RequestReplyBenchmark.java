@@ -0,0 +1,238 @@
+package com.robaho.jnatsd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * request/reply latency with many concurrent requesters, each with one request outstanding, served by
+ * a queue group of responders. Requesters reply either to a wildcard inbox subscribed once, as current
+ * clients do, or to an inbox subscribed per request with UNSUB 1, as older clients do. The general mode
+ * adds a subscription that could match inbox subjects, so replies are routed through the sublist and
+ * the match cache rather than the inbox index.
+ *
+ * The requesters are driven by a single selector, the responders each have a thread.
+ *
+ * usage: RequestReplyBenchmark [requesters] [seconds per run]
+ */
+public class RequestReplyBenchmark {
+    private static final int RESPONDERS = 4;
+    private static final byte[] PAYLOAD = "0123456789abcdef".getBytes();
+    private static int port = 19222;
+
+    private enum Mode {
+        /** a wildcard inbox per requester */
+        INBOX,
+        /** a wildcard inbox per requester, with replies routed through the sublist */
+        GENERAL,
+        /** an inbox subscribed for each request, and removed after the reply with UNSUB 1 */
+        PER_REQUEST
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requesters = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println(String.format("%-12s %10s %12s %9s %9s %9s %12s", "mode", "requesters", "requests/s", "p50 us", "p99 us", "p99.9 us", "cache misses"));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the jit
+            for (Mode mode : Mode.values())
+                run(mode, requesters, round == 1 ? seconds : 2, round == 1);
+        }
+    }
+
+    private static class Requester {
+        final int id;
+        final SocketChannel ch;
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+        long sent;
+        int next;
+
+        Requester(int id, SocketChannel ch) {
+            this.id = id;
+            this.ch = ch;
+        }
+    }
+
+    private static void run(Mode mode, int nrequesters, int seconds, boolean print) throws Exception {
+        Server server = new Server(++port);
+        server.setTransport(Server.Transport.NIO);
+        server.start();
+        Thread.sleep(250);
+
+        List<Socket> responders = new ArrayList<>();
+        for (int i = 0; i < RESPONDERS; i++) {
+            Socket s = connect();
+            String subs = "SUB service workers 1\r\n" + (mode == Mode.GENERAL && i == 0 ? "SUB *.never 2\r\n" : "");
+            roundTrip(s, subs);
+            responders.add(s);
+            Thread t = new Thread(() -> respond(s), "Responder-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Selector selector = Selector.open();
+        Requester[] requesters = new Requester[nrequesters];
+        for (int i = 0; i < nrequesters; i++) {
+            Socket s = connect();
+            if (mode != Mode.PER_REQUEST)
+                roundTrip(s, "SUB _INBOX." + i + ".* 1\r\n");
+            SocketChannel ch = s.getChannel();
+            ch.configureBlocking(false);
+            requesters[i] = new Requester(i, ch);
+            ch.register(selector, SelectionKey.OP_READ, requesters[i]);
+        }
+
+        long misses = server.getCacheMisses();
+        long[] latencies = new long[1024 * 1024];
+        int count = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        for (Requester r : requesters)
+            request(mode, r);
+        int outstanding = nrequesters;
+        while (outstanding > 0) {
+            selector.select(1000);
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.selectedKeys()) {
+                Requester r = (Requester) key.attachment();
+                if (r.ch.read(r.in) < 0)
+                    throw new IOException("connection closed by server");
+                while (consumeMessage(r.in)) {
+                    if (count == latencies.length)
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    latencies[count++] = now - r.sent;
+                    if (now < end)
+                        request(mode, r);
+                    else
+                        outstanding--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (print) {
+            Arrays.sort(latencies, 0, count);
+            System.out.println(String.format("%-12s %10d %12.0f %9.0f %9.0f %9.0f %12d", mode.name().toLowerCase(), nrequesters,
+                    count / (elapsed / 1e9), latencies[count / 2] / 1e3, latencies[(int) (count * 0.99)] / 1e3,
+                    latencies[(int) (count * 0.999)] / 1e3, server.getCacheMisses() - misses));
+        }
+
+        for (Requester r : requesters)
+            r.ch.close();
+        for (Socket s : responders)
+            s.close();
+        selector.close();
+        server.stop();
+        Thread.sleep(500);
+    }
+
+    private static void request(Mode mode, Requester r) throws IOException {
+        String inbox = "_INBOX." + r.id + "." + (r.next++);
+        StringBuilder sb = new StringBuilder();
+        if (mode == Mode.PER_REQUEST) {
+            int sid = r.next;
+            sb.append("SUB ").append(inbox).append(' ').append(sid).append("\r\nUNSUB ").append(sid).append(" 1\r\n");
+        }
+        sb.append("PUB service ").append(inbox).append(' ').append(PAYLOAD.length).append("\r\n");
+        ByteBuffer bb = ByteBuffer.allocate(sb.length() + PAYLOAD.length + 2);
+        bb.put(sb.toString().getBytes()).put(PAYLOAD).put((byte) '\r').put((byte) '\n').flip();
+        r.sent = System.nanoTime();
+        while (bb.hasRemaining())
+            r.ch.write(bb);
+    }
+
+    /**
+     * remove a complete MSG from the buffer, which is in write mode
+     * @return true if there was one
+     */
+    private static boolean consumeMessage(ByteBuffer bb) {
+        int nl = -1;
+        for (int i = 0; i < bb.position(); i++) {
+            if (bb.get(i) == '\n') {
+                nl = i;
+                break;
+            }
+        }
+        if (nl < 0)
+            return false;
+        int sizeStart = nl - 1;
+        while (bb.get(sizeStart - 1) != ' ')
+            sizeStart--;
+        int size = 0;
+        for (int i = sizeStart; i < nl - 1; i++)
+            size = size * 10 + bb.get(i) - '0';
+        int total = nl + 1 + size + 2;
+        if (bb.position() < total)
+            return false;
+        bb.flip();
+        bb.position(total);
+        bb.compact();
+        return true;
+    }
+
+    /**
+     * reply to each request with its payload, flushing once the requests read so far are answered
+     */
+    private static void respond(Socket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            byte[] payload = new byte[1024];
+            while (true) {
+                String line = readLine(in);
+                if (!line.startsWith("MSG "))
+                    continue;
+                // MSG subject sid reply size
+                String[] args = line.split(" ");
+                int size = Integer.parseInt(args[args.length - 1]);
+                for (int n = 0, k; n < size + 2; n += k) {
+                    if ((k = in.read(payload, n, size + 2 - n)) < 0)
+                        return;
+                }
+                out.write(("PUB " + args[3] + " " + size + "\r\n").getBytes());
+                out.write(payload, 0, size + 2);
+                if (in.available() == 0)
+                    out.flush();
+            }
+        } catch (IOException e) {
+            // closed at the end of the run
+        }
+    }
+
+    private static Socket connect() throws IOException {
+        SocketChannel ch = SocketChannel.open(new InetSocketAddress("localhost", port));
+        Socket s = ch.socket();
+        s.setTcpNoDelay(true);
+        readLine(s.getInputStream()); // INFO
+        s.getOutputStream().write("CONNECT {\"verbose\":false}\r\n".getBytes());
+        return s;
+    }
+
+    private static void roundTrip(Socket s, String commands) throws IOException {
+        s.getOutputStream().write((commands + "PING\r\n").getBytes());
+        while (!readLine(s.getInputStream()).startsWith("PONG"))
+            ;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1)
+                throw new IOException("connection closed");
+            sb.append((char) c);
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,107 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.RingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * throughput of the ring buffer for each wait strategy as the number of writers grows, with the reader
+ * taking single items or draining in batches, against an ArrayBlockingQueue of the same capacity.
+ *
+ * usage: RingBufferBenchmark [items per run]
+ */
+public class RingBufferBenchmark {
+    private static final int[] WRITERS = {1, 2, 4, 8};
+    private static final int CAPACITY = 1024;
+    private static final int BATCH = 64;
+    private static final Object ITEM = new Object();
+
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        System.out.println(String.format("%-22s %8s %14s", "queue", "writers", "items/sec"));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the jit
+            boolean print = round == 1;
+            for (int writers : WRITERS) {
+                for (RingBuffer.WaitStrategy waitStrategy : RingBuffer.WaitStrategy.values()) {
+                    report(print, "ring " + waitStrategy.name().toLowerCase() + " get", writers, runRing(waitStrategy, writers, items, false));
+                    report(print, "ring " + waitStrategy.name().toLowerCase() + " drain", writers, runRing(waitStrategy, writers, items, true));
+                }
+                report(print, "ArrayBlockingQueue", writers, runQueue(new ArrayBlockingQueue<>(CAPACITY), writers, items));
+            }
+        }
+    }
+
+    private static void report(boolean print, String name, int writers, double rate) {
+        if (print)
+            System.out.println(String.format("%-22s %8d %14.0f", name, writers, rate));
+    }
+
+    private static double runRing(RingBuffer.WaitStrategy waitStrategy, int nwriters, int items, boolean drain) throws Exception {
+        RingBuffer<Object> rb = new RingBuffer<>(CAPACITY, waitStrategy);
+        int perWriter = items / nwriters;
+        List<Thread> writers = startWriters(nwriters, () -> {
+            for (int i = 0; i < perWriter; i++)
+                rb.put(ITEM);
+        });
+        long start = System.nanoTime();
+        long total = (long) perWriter * nwriters;
+        for (long read = 0; read < total; ) {
+            if (drain) {
+                int n = rb.drainTo(item -> {}, BATCH);
+                if (n == 0)
+                    rb.available(1000000); // wait using the strategy
+                read += n;
+            } else {
+                rb.get();
+                read++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        join(writers);
+        return total / (elapsed / 1e9);
+    }
+
+    private static double runQueue(BlockingQueue<Object> queue, int nwriters, int items) throws Exception {
+        int perWriter = items / nwriters;
+        List<Thread> writers = startWriters(nwriters, () -> {
+            for (int i = 0; i < perWriter; i++)
+                queue.put(ITEM);
+        });
+        long start = System.nanoTime();
+        long total = (long) perWriter * nwriters;
+        for (long read = 0; read < total; read++)
+            queue.take();
+        long elapsed = System.nanoTime() - start;
+        join(writers);
+        return total / (elapsed / 1e9);
+    }
+
+    private interface Writer {
+        void run() throws InterruptedException;
+    }
+
+    private static List<Thread> startWriters(int nwriters, Writer writer) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nwriters; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    writer.run();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads)
+            t.join();
+    }
+}
@@ -0,0 +1,151 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.RingBuffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.TestCase.*;
+
+public class RingBufferTest {
+    @Test
+    public void testOfferPoll() {
+        RingBuffer<Integer> rb = new RingBuffer<>(5);
+        assertEquals(8, rb.capacity());
+        assertTrue(rb.isEmpty());
+        assertNull(rb.poll());
+        // wrap around the ring several times
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 8; i++)
+                assertTrue(rb.offer(i));
+            assertFalse(rb.offer(8));
+            assertEquals(8, rb.size());
+            for (int i = 0; i < 8; i++)
+                assertEquals(Integer.valueOf(i), rb.poll());
+            assertNull(rb.poll());
+            assertTrue(rb.isEmpty());
+        }
+    }
+
+    @Test
+    public void testDrainTo() {
+        RingBuffer<Integer> rb = new RingBuffer<>(16);
+        for (int i = 0; i < 10; i++)
+            rb.offer(i);
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(4, rb.drainTo(drained::add, 4));
+        assertEquals(6, rb.size());
+        assertEquals(6, rb.drainTo(drained::add, 100));
+        for (int i = 0; i < 10; i++)
+            assertEquals(Integer.valueOf(i), drained.get(i));
+        assertEquals(0, rb.drainTo(drained::add, 100));
+
+        // the item passed to a consumer that throws is removed, and the next drain continues after it
+        for (int i = 0; i < 3; i++)
+            rb.offer(i);
+        try {
+            rb.drainTo(i -> {
+                if (i == 1)
+                    throw new IllegalStateException();
+            }, 100);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, rb.size());
+        assertEquals(Integer.valueOf(2), rb.poll());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        RingBuffer<Integer> rb = new RingBuffer<>(4, RingBuffer.WaitStrategy.PARK);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                rb.get();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        rb.shutdown();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue(error.get() instanceof InterruptedException);
+    }
+
+    @Test
+    public void testStressSpin() throws Exception {
+        stress(RingBuffer.WaitStrategy.SPIN);
+    }
+
+    @Test
+    public void testStressYield() throws Exception {
+        stress(RingBuffer.WaitStrategy.YIELD);
+    }
+
+    @Test
+    public void testStressPark() throws Exception {
+        stress(RingBuffer.WaitStrategy.PARK);
+    }
+
+    /**
+     * writers contend on a small ring so it is often full and wraps many times, while the reader
+     * alternates between single and batch reads. Every item must be read exactly once, and each writer's
+     * items in the order written.
+     */
+    private static void stress(RingBuffer.WaitStrategy waitStrategy) throws Exception {
+        final int writers = 4;
+        final int count = 20000;
+        RingBuffer<long[]> rb = new RingBuffer<>(64, waitStrategy);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Thread t = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        long[] item = {writer, i};
+                        if (i % 2 == 0) {
+                            rb.put(item);
+                        } else {
+                            while (!rb.offer(item))
+                                Thread.yield();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        long[] next = new long[writers];
+        long[] read = {0};
+        String[] error = {null};
+        while (read[0] < (long) writers * count) {
+            if (read[0] % 3 == 0) {
+                int n = rb.drainTo(item -> {
+                    if (item[1] != next[(int) item[0]]++)
+                        error[0] = "writer " + item[0] + " expected " + (next[(int) item[0]] - 1) + " got " + item[1];
+                    read[0]++;
+                }, 5);
+                if (n == 0)
+                    Thread.yield();
+            } else {
+                long[] item = rb.get();
+                assertEquals(next[(int) item[0]]++, item[1]);
+                read[0]++;
+            }
+            assertNull(error[0]);
+        }
+        for (Thread t : threads)
+            t.join();
+        for (int w = 0; w < writers; w++)
+            assertEquals(count, next[w]);
+        assertTrue(rb.isEmpty());
+        assertNull(rb.poll());
+    }
+}
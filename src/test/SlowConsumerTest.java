@@ -0,0 +1,129 @@
+package com.robaho.jnatsd;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class SlowConsumerTest {
+    /**
+     * publishes enough to a subscriber that doesn't read to fill the socket buffers, and checks the
+     * publisher is not held up
+     */
+    private static void publish(Socket pub, int count) throws IOException {
+        OutputStream out = pub.getOutputStream();
+        byte[] payload = new byte[8000];
+        for (int i = 0; i < count; i++) {
+            out.write(("PUB slow " + payload.length + "\r\n").getBytes());
+            out.write(payload);
+            out.write("\r\n".getBytes());
+        }
+        out.write("PING\r\n".getBytes());
+        assertTrue(readUntil(pub, "PONG").contains("PONG"));
+    }
+
+    private static Server start(Server.SlowConsumerPolicy policy, long maxPending, long writeDeadline) throws IOException {
+        Server server = newServer();
+        server.setSlowConsumerPolicy(policy);
+        server.setMaxPending(maxPending);
+        server.setWriteDeadline(writeDeadline);
+        server.start();
+        return server;
+    }
+
+    private static Socket subscribe(Server server) throws IOException, InterruptedException {
+        Socket sub = connect(server);
+        roundTrip(sub, "SUB slow 1\r\n");
+        return sub;
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        Server server = start(Server.SlowConsumerPolicy.DROP, 256 * 1024, 60000);
+        try (Socket sub = subscribe(server); Socket pub = connect(server)) {
+            publish(pub, 2000);
+            // the socket may accept more as its buffers drain, starting further episodes
+            assertTrue(server.getSlowConsumers() >= 1);
+            assertTrue(server.getDroppedMessages() > 0);
+
+            // the subscriber remains connected, and receives messages again once it catches up
+            assertTrue(readUntil(sub, "-ERR 'Slow Consumer'").contains("-ERR 'Slow Consumer'\r\n"));
+            // messages are dropped until the server sees the output written, so publish until one arrives
+            sub.setSoTimeout(100);
+            boolean received = false;
+            for (int i = 0; i < 50 && !received; i++) {
+                pub.getOutputStream().write("PUB slow 5\r\nagain\r\n".getBytes());
+                try {
+                    received = readUntil(sub, "again").contains("MSG slow 1 5\r\nagain");
+                } catch (SocketTimeoutException ignored) {
+                }
+            }
+            assertTrue(received);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDropDoesNotDelayOthers() throws Exception {
+        // a single flusher, so both subscribers are flushed by it
+        Server server = newServer();
+        server.setSlowConsumerPolicy(Server.SlowConsumerPolicy.DROP);
+        server.setMaxPending(256 * 1024);
+        server.setWriteDeadline(60000);
+        server.setFlushers(1);
+        server.start();
+        try (Socket stalled = subscribe(server); Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB fast 1\r\n");
+            // the stalled subscriber's socket fills, and stays full as it never reads
+            publish(pub, 2000);
+            assertTrue(server.getDroppedMessages() > 0);
+
+            long start = System.nanoTime();
+            pub.getOutputStream().write("PUB fast 5\r\nquick\r\n".getBytes());
+            assertTrue(readUntil(sub, "quick").contains("MSG fast 1 5\r\nquick"));
+            assertTrue(System.nanoTime() - start < 5000000000L);
+            // the stalled subscriber only lost messages, it was not disconnected
+            assertTrue(readUntil(stalled, "MSG slow").contains("MSG slow"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        Server server = start(Server.SlowConsumerPolicy.DISCONNECT, 256 * 1024, 60000);
+        try (Socket sub = subscribe(server); Socket pub = connect(server)) {
+            publish(pub, 2000);
+            assertEquals(1, server.getSlowConsumers());
+            assertEquals(0, server.getDroppedMessages());
+            // read until closed
+            assertFalse(readUntil(sub, "never sent").contains("never sent"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testWriteDeadline() throws Exception {
+        Server server = start(Server.SlowConsumerPolicy.DISCONNECT, 64L * 1024 * 1024, 200);
+        try (Socket sub = subscribe(server); Socket pub = connect(server)) {
+            publish(pub, 2000);
+            for (int i = 0; i < 100 && server.getSlowConsumers() == 0; i++)
+                Thread.sleep(20);
+            assertEquals(1, server.getSlowConsumers());
+            try {
+                assertFalse(readUntil(sub, "never sent").contains("never sent"));
+            } catch (SocketTimeoutException e) {
+                fail("expected the connection to be closed");
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
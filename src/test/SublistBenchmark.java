@@ -0,0 +1,85 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * compares the Sublist trie against the linear array scan it replaced, using the
+ * subscription counts given on the command line (default 1k, 100k and 1M)
+ */
+public class SublistBenchmark {
+    private static final long DURATION_MS = 2000;
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 100000, 1000000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static String subject(Random r, int size, boolean wildcards) {
+        int fanout = (int) Math.cbrt(size) + 1;
+        String t1 = "t" + r.nextInt(fanout);
+        String t2 = "t" + r.nextInt(fanout);
+        String t3 = "t" + r.nextInt(fanout);
+        if (wildcards) {
+            int w = r.nextInt(20);
+            if (w == 0)
+                t2 = "*";
+            else if (w == 1)
+                t3 = ">";
+        }
+        return t1 + "." + t2 + "." + t3;
+    }
+
+    private static void run(int size) {
+        Random r = new Random(size);
+        Subscription[] subs = new Subscription[size];
+        Sublist sublist = new Sublist();
+        for (int i = 0; i < size; i++) {
+            subs[i] = new Subscription(null, i, subject(r, size, true), "");
+            sublist.insert(subs[i]);
+        }
+        Subscription[] published = new Subscription[1024];
+        for (int i = 0; i < published.length; i++) {
+            published[i] = new Subscription(null, 0, subject(r, size, false), "");
+        }
+
+        long scanned = 0, matched = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; System.currentTimeMillis() - start < DURATION_MS; i++) {
+            Subscription p = published[i & (published.length - 1)];
+            for (Subscription s : subs) {
+                if (s.matches(p))
+                    matched++;
+            }
+            scanned++;
+        }
+        double scanRate = scanned * 1000.0 / (System.currentTimeMillis() - start);
+
+        long lookups = 0, trieMatched = 0;
+        List<Subscription> psubs = new ArrayList<>();
+        Map<CharSeq, List<Subscription>> qsubs = new HashMap<>();
+        start = System.currentTimeMillis();
+        for (int i = 0; System.currentTimeMillis() - start < DURATION_MS; i++) {
+            psubs.clear();
+            sublist.match(published[i & (published.length - 1)].subject, psubs, qsubs);
+            trieMatched += psubs.size();
+            lookups++;
+        }
+        double trieRate = lookups * 1000.0 / (System.currentTimeMillis() - start);
+
+        System.out.printf("subs=%d array scan %.0f lookups/sec (avg %.1f matches), sublist %.0f lookups/sec (avg %.1f matches), speedup %.0fx%n",
+                size, scanRate, (double) matched / scanned, trieRate, (double) trieMatched / lookups, trieRate / scanRate);
+    }
+}
@@ -0,0 +1,89 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class SublistTest {
+    private static List<Subscription> match(Sublist sl, String subject) {
+        List<Subscription> psubs = new ArrayList<>();
+        sl.match(new CharSeq(subject), psubs, new HashMap<>());
+        return psubs;
+    }
+
+    @Test
+    public void testMatch() {
+        Sublist sl = new Sublist();
+        Subscription literal = new Subscription(null, 1, "some.any", "");
+        Subscription pwc = new Subscription(null, 2, "some.*", "");
+        Subscription fwc = new Subscription(null, 3, "some.>", "");
+        Subscription all = new Subscription(null, 4, ">", "");
+        Subscription deep = new Subscription(null, 5, "*.any.*", "");
+        sl.insert(literal);
+        sl.insert(pwc);
+        sl.insert(fwc);
+        sl.insert(all);
+        sl.insert(deep);
+
+        assertEquals(5, sl.count());
+
+        List<Subscription> r = match(sl, "some.any");
+        assertEquals(4, r.size());
+        assertTrue(r.contains(literal) && r.contains(pwc) && r.contains(fwc) && r.contains(all));
+
+        r = match(sl, "some.any.any");
+        assertEquals(3, r.size());
+        assertTrue(r.contains(fwc) && r.contains(all) && r.contains(deep));
+
+        r = match(sl, "some");
+        assertEquals(1, r.size());
+        assertTrue(r.contains(all));
+
+        r = match(sl, "other.thing");
+        assertEquals(1, r.size());
+    }
+
+    @Test
+    public void testQueueGroups() {
+        Sublist sl = new Sublist();
+        sl.insert(new Subscription(null, 1, "work.*", "workers"));
+        sl.insert(new Subscription(null, 2, "work.item", "workers"));
+        sl.insert(new Subscription(null, 3, "work.item", "auditors"));
+        sl.insert(new Subscription(null, 4, "work.item", ""));
+
+        List<Subscription> psubs = new ArrayList<>();
+        Map<CharSeq, List<Subscription>> qsubs = new HashMap<>();
+        sl.match(new CharSeq("work.item"), psubs, qsubs);
+
+        assertEquals(1, psubs.size());
+        assertEquals(2, qsubs.size());
+        assertEquals(2, qsubs.get(new CharSeq("workers")).size());
+        assertEquals(1, qsubs.get(new CharSeq("auditors")).size());
+    }
+
+    @Test
+    public void testRemove() {
+        Sublist sl = new Sublist();
+        Subscription s1 = new Subscription(null, 1, "a.b.c", "");
+        Subscription s2 = new Subscription(null, 2, "a.*.c", "g");
+        sl.insert(s1);
+        sl.insert(s2);
+
+        assertTrue(sl.remove(s1));
+        assertTrue(!sl.remove(s1));
+        assertEquals(0, match(sl, "a.b.c").size());
+
+        assertTrue(sl.remove(s2));
+        assertEquals(0, sl.count());
+
+        sl.insert(s1);
+        assertEquals(1, match(sl, "a.b.c").size());
+    }
+}
@@ -0,0 +1,37 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.CoarseClock;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class SubscriptionCacheTest {
+    private static SubscriptionMatch match(String subject) {
+        return new SubscriptionMatch(new CharSeq(subject), new ArrayList<>(), new HashMap<>());
+    }
+
+    @Test
+    public void testBounded() {
+        CoarseClock clock = new CoarseClock(1, TimeUnit.MILLISECONDS);
+        SubscriptionCache cache = new SubscriptionCache(clock, 100, TimeUnit.MINUTES.toMillis(1));
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.putIfAbsent(match("_INBOX.abc." + i)));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(900, cache.evictions());
+
+        assertNull(cache.get(new CharSeq("_INBOX.abc.0")));
+        assertNotNull(cache.get(new CharSeq("_INBOX.abc.999")));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+}
@@ -0,0 +1,44 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.CharSeq;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class SubscriptionMatchTest {
+    @Test
+    public void testRoundRobin() {
+        Subscription s1 = new Subscription(null, 1, "work", "workers");
+        Subscription s2 = new Subscription(null, 2, "work", "workers");
+        Subscription s3 = new Subscription(null, 3, "work", "workers");
+
+        Map<CharSeq, List<Subscription>> groups = new HashMap<>();
+        groups.put(s1.group, new ArrayList<>(Arrays.asList(s1, s2)));
+        SubscriptionMatch match = new SubscriptionMatch(new CharSeq("work"), new ArrayList<>(), groups);
+
+        Map<Subscription, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++)
+            counts.merge(match.groups[0].select(false).sub, 1, Integer::sum);
+        assertEquals(500, (int) counts.get(s1));
+        assertEquals(500, (int) counts.get(s2));
+
+        match.add(s3);
+        assertEquals(1, match.groups.length);
+        counts.clear();
+        for (int i = 0; i < 999; i++)
+            counts.merge(match.groups[0].select(false).sub, 1, Integer::sum);
+        assertEquals(333, (int) counts.get(s3));
+
+        match.removeAll(Collections.singleton(s1));
+        match.removeAll(Collections.singleton(s2));
+        match.removeAll(Collections.singleton(s3));
+        assertEquals(0, match.groups.length);
+    }
+}
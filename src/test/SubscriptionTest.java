@@ -1,9 +1,15 @@
 package com.robaho.jnatsd;
 
+import com.robaho.jnatsd.util.CharSeq;
+import com.robaho.jnatsd.util.TokenTable;
 import org.junit.Test;
 
+import java.net.Socket;
 import java.util.Arrays;
+import java.util.Collections;
 
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 import static junit.framework.TestCase.assertFalse;
 
@@ -50,4 +56,83 @@ public class SubscriptionTest {
             System.out.println(s.subject);
         }
     }
+
+    @Test
+    public void testTokens() {
+        // the table is shared with the servers of other tests, which release tokens asynchronously, so
+        // only the tokens unique to this test are checked, rather than the size of the table
+        Subscription s1 = new Subscription(null,1,"subscriptiontest.tokens.*","");
+        Subscription s2 = new Subscription(null,2,"subscriptiontest.tokens.literal","");
+        assertTrue(s1.tokens[1]==s2.tokens[1]);
+        assertEquals(s1.tokens[0],lookup("subscriptiontest"));
+        assertEquals(s2.tokens[2],lookup("literal"));
+        assertEquals(TokenTable.PWC,s1.tokens[2]);
+        assertFalse(s1.literal);
+        assertTrue(s2.literal);
+
+        s1.release();
+        assertEquals(s2.tokens[0],lookup("subscriptiontest"));
+        s2.release();
+        assertEquals(TokenTable.UNKNOWN,lookup("subscriptiontest"));
+        assertEquals(TokenTable.UNKNOWN,lookup("tokens"));
+    }
+
+    private static int lookup(String token) {
+        return Subscription.tokenTable.lookup(new CharSeq(token),0,token.length());
+    }
+
+    /**
+     * assert the messages were received before the PONG, in any order
+     */
+    private static void assertReceived(String received, String... messages) {
+        int length = "PONG\r\n".length();
+        for (String m : messages) {
+            assertTrue(received, received.contains(m));
+            length += m.length();
+        }
+        assertEquals(received, length, received.length());
+    }
+
+    @Test
+    public void testBatchedSubscriptions() throws Exception {
+        Server server = newServer();
+        server.start();
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            // a cached match for a subject, that the batch must patch
+            roundTrip(pub, "PUB batch.a 1\r\nx\r\n");
+            long changes = server.getSubscriptionChanges();
+            // consecutive SUBs are added together, a repeated ssid replacing the earlier SUB, before the
+            // command following them
+            String commands = "SUB batch.a 1\r\nSUB batch.* 2\r\nSUB batch.c 3\r\nSUB batch.b 3\r\nPUB batch.a 1\r\ny\r\n";
+            assertReceived(roundTrip(sub, commands), "MSG batch.a 1 1\r\ny\r\n", "MSG batch.a 2 1\r\ny\r\n");
+            assertEquals(changes + 1, server.getSubscriptionChanges());
+
+            roundTrip(pub, "PUB batch.b 1\r\nz\r\nPUB batch.c 1\r\nz\r\n");
+            assertReceived(roundTrip(sub, ""), "MSG batch.b 2 1\r\nz\r\n", "MSG batch.b 3 1\r\nz\r\n", "MSG batch.c 2 1\r\nz\r\n");
+            for (Connection c : server.getConnections()) {
+                if (!c.subscriptions.isEmpty())
+                    assertEquals(3, c.subscriptions.size());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAddAfterClose() throws Exception {
+        Server server = newServer();
+        server.start();
+        try (Socket client = connect(server)) {
+            roundTrip(client, "");
+            Connection c = server.getConnections().iterator().next();
+            server.closeConnection(c);
+            // a batch from a parse pass still in progress as the connection was closed
+            Subscription s = new Subscription(c, 1, "subscriptiontest.closed", "");
+            server.addSubscriptions(c, Collections.singletonList(s));
+            assertTrue(c.subscriptions.isEmpty());
+            assertEquals(TokenTable.UNKNOWN, lookup("closed"));
+        } finally {
+            server.stop();
+        }
+    }
 }
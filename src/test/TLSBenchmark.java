@@ -0,0 +1,143 @@
+package com.robaho.jnatsd;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * message throughput from one publisher to one subscriber, with and without TLS, for small and large
+ * payloads. Both clients run in this process, so the rates include their own encryption.
+ *
+ * usage: TLSBenchmark [transport...], defaults to threaded and nio. Unless javax.net.ssl.keyStore is
+ * set, a self-signed key is generated with the JDK's keytool.
+ */
+public class TLSBenchmark {
+    private static final int[] PAYLOADS = {64, 1024, 64 * 1024};
+    private static final long BYTES = 64L * 1024 * 1024; // published per run
+    private static final int MAX_MESSAGES = 1000000;
+    private static int port = 17222;
+
+    public static void main(String[] args) throws Exception {
+        List<Server.Transport> transports = new ArrayList<>();
+        for (String arg : args)
+            transports.add(Server.Transport.valueOf(arg.toUpperCase()));
+        if (transports.isEmpty()) {
+            transports.add(Server.Transport.THREADED);
+            transports.add(Server.Transport.NIO);
+        }
+        if (System.getProperty("javax.net.ssl.keyStore") == null)
+            ConnectStormBenchmark.generateKeyStore();
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[]{new ConnectStormBenchmark.TrustAll()}, null);
+
+        System.out.println(String.format("%-10s %-6s %8s %12s %10s", "transport", "tls", "payload", "msgs/sec", "MB/sec"));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the jit
+            for (Server.Transport transport : transports) {
+                for (int payload : PAYLOADS) {
+                    for (boolean tls : new boolean[]{false, true}) {
+                        run(transport, tls, payload, client, round == 1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(Server.Transport transport, boolean tls, int payload, SSLContext client, boolean print) throws Exception {
+        Server server = new Server(++port);
+        server.setTransport(transport);
+        server.setTLSRequired(tls);
+        // the subscriber reads in this process, so may fall behind, and must not be cut off as slow
+        server.setMaxPending(1024L * 1024 * 1024);
+        server.setMaxPendingMsgs(Integer.MAX_VALUE);
+        server.setWriteDeadline(60000);
+        server.start();
+        Thread.sleep(250);
+
+        Socket sub = connect(tls, client);
+        OutputStream subOut = sub.getOutputStream();
+        subOut.write("SUB bench 1\r\nPING\r\n".getBytes());
+        subOut.flush();
+        InputStream subIn = sub.getInputStream();
+        readLine(subIn); // PONG
+        Socket pub = connect(tls, client);
+
+        int count = (int) Math.min(MAX_MESSAGES, BYTES / payload);
+        byte[] message = message(payload);
+        long expected = (long) count * (("MSG bench 1 " + payload + "\r\n").length() + payload + 2);
+
+        long start = System.nanoTime();
+        Thread publisher = new Thread(() -> {
+            try {
+                OutputStream out = new BufferedOutputStream(pub.getOutputStream(), 64 * 1024);
+                for (int i = 0; i < count; i++)
+                    out.write(message);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        publisher.start();
+        byte[] buffer = new byte[64 * 1024];
+        for (long received = 0; received < expected; ) {
+            int n = subIn.read(buffer);
+            if (n < 0)
+                throw new IOException("connection closed, received " + received + " of " + expected + " bytes");
+            received += n;
+        }
+        long elapsed = System.nanoTime() - start;
+        publisher.join();
+
+        if (print) {
+            System.out.println(String.format("%-10s %-6s %8d %12.0f %10.1f", transport.name().toLowerCase(), tls, payload,
+                    count / (elapsed / 1e9), (double) count * payload / (elapsed / 1e9) / (1024 * 1024)));
+        }
+        sub.close();
+        pub.close();
+        server.stop();
+        Thread.sleep(500);
+    }
+
+    private static byte[] message(int payload) {
+        byte[] header = ("PUB bench " + payload + "\r\n").getBytes();
+        byte[] message = new byte[header.length + payload + 2];
+        System.arraycopy(header, 0, message, 0, header.length);
+        for (int i = header.length; i < message.length - 2; i++)
+            message[i] = 'x';
+        message[message.length - 2] = '\r';
+        message[message.length - 1] = '\n';
+        return message;
+    }
+
+    private static Socket connect(boolean tls, SSLContext client) throws IOException {
+        Socket s = new Socket("localhost", port);
+        s.setTcpNoDelay(true);
+        readLine(s.getInputStream()); // INFO
+        if (tls) {
+            SSLSocket ssl = (SSLSocket) client.getSocketFactory().createSocket(s, "localhost", port, true);
+            ssl.startHandshake();
+            s = ssl;
+        }
+        OutputStream out = s.getOutputStream();
+        out.write("CONNECT {\"verbose\":false}\r\n".getBytes());
+        out.flush();
+        return s;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c == -1)
+                throw new IOException("connection closed");
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package com.robaho.jnatsd;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class TLSChannelTest {
+    private static final Server.Transport[] TRANSPORTS = {Server.Transport.THREADED, Server.Transport.NIO};
+
+    @BeforeClass
+    public static void keyStore() throws Exception {
+        useTestKeyStore();
+    }
+
+    private static Server start(Server.Transport transport) throws Exception {
+        Server server = newServer();
+        server.setTransport(transport);
+        server.setTLSRequired(true);
+        server.setHandshakeTimeout(10000); // the first handshake initializes TLS
+        server.start();
+        return server;
+    }
+
+    private static String payload(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) ('a' + i % 26);
+        return new String(chars);
+    }
+
+    private static int connections(Server server) {
+        int n = 0;
+        for (Connection ignored : server.getConnections())
+            n++;
+        return n;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (Server.Transport transport : TRANSPORTS) {
+            Server server = start(transport);
+            try (Socket sub = connectTLS(server); Socket pub = connectTLS(server)) {
+                roundTrip(sub, "SUB foo 1\r\n");
+                // larger than a TLS record, so split across records in both directions
+                String large = payload(100 * 1024);
+                roundTrip(pub, "PUB foo 5\r\nsmall\r\nPUB foo " + large.length() + "\r\n" + large + "\r\nPUB foo 3\r\nend\r\n");
+                assertEquals(transport.toString(), "MSG foo 1 5\r\nsmall\r\nMSG foo 1 " + large.length() + "\r\n" + large + "\r\nMSG foo 1 3\r\nend\r\nPONG\r\n",
+                        roundTrip(sub, ""));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testCloseMidStream() throws Exception {
+        for (Server.Transport transport : TRANSPORTS) {
+            Server server = start(transport);
+            try (Socket sub = connectTLS(server)) {
+                roundTrip(sub, "SUB foo 1\r\n");
+                // with close_notify, and reset without it, each part way through a payload spanning records
+                for (boolean reset : new boolean[]{false, true}) {
+                    Socket pub = connectTLS(server);
+                    roundTrip(pub, "");
+                    OutputStream out = pub.getOutputStream();
+                    byte[] partial = ("PUB foo 100000\r\n" + payload(40000)).getBytes();
+                    out.write(partial);
+                    out.flush();
+                    if (reset)
+                        pub.setSoLinger(true, 0);
+                    pub.close();
+                    for (int i = 0; i < 500 && connections(server) > 1; i++)
+                        Thread.sleep(10);
+                    assertEquals(transport + " reset=" + reset, 1, connections(server));
+                }
+                // the partial message was not delivered, and the server still serves the subscriber
+                Socket pub = connectTLS(server);
+                roundTrip(pub, "PUB foo 2\r\nok\r\n");
+                pub.close();
+                assertEquals(transport.toString(), "MSG foo 1 2\r\nok\r\nPONG\r\n", roundTrip(sub, ""));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testClientRequiresTLS() throws Exception {
+        // the nio transport cannot upgrade after CONNECT, so the connection is refused
+        Server server = newServer();
+        server.setTransport(Server.Transport.NIO);
+        server.start();
+        try (Socket s = connect(server, "{\"verbose\":false,\"tls_required\":true}")) {
+            // read until the server closes the connection, before the client's handshake could be parsed
+            String received = readUntil(s, "closed");
+            assertTrue(received, received.startsWith("-ERR 'TLS must be required by the server"));
+            for (int i = 0; i < 500 && connections(server) > 0; i++)
+                Thread.sleep(10);
+            assertEquals(0, connections(server));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.robaho.jnatsd;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * clients of a server under test, speaking the protocol over plain sockets
+ */
+final class TestSockets {
+    static final String OPTIONS = "{\"verbose\":false}";
+
+    private static final AtomicInteger ports = new AtomicInteger(4300);
+
+    private TestSockets() {
+    }
+
+    /**
+     * @return a server, not yet started, on a port no other test uses. A stopped server's listener
+     * closes asynchronously, so the port cannot be reused at once.
+     */
+    static Server newServer() {
+        return new Server(ports.incrementAndGet());
+    }
+
+    /**
+     * @return a socket connected to the server, retrying while the server starts listening, with a
+     * read timeout so a missing response fails the test
+     */
+    static Socket open(Server server) throws IOException, InterruptedException {
+        Socket s;
+        for (int attempts = 0; ; attempts++) {
+            try {
+                s = new Socket("localhost", server.getPort());
+                break;
+            } catch (ConnectException e) {
+                if (attempts == 100)
+                    throw e;
+                Thread.sleep(20);
+            }
+        }
+        s.setSoTimeout(10000);
+        return s;
+    }
+
+    static Socket connect(Server server) throws IOException, InterruptedException {
+        return connect(server, OPTIONS);
+    }
+
+    /**
+     * @return a socket that has read INFO and sent CONNECT with the options
+     */
+    static Socket connect(Server server, String options) throws IOException, InterruptedException {
+        Socket s = open(server);
+        readUntil(s, "\r\n"); // INFO
+        s.getOutputStream().write(("CONNECT " + options + "\r\n").getBytes());
+        return s;
+    }
+
+    /**
+     * use a self-signed key for TLS, unless javax.net.ssl.keyStore is set. Must be called before the
+     * first TLS connection, as the default SSLContext reads the key store once.
+     */
+    static synchronized void useTestKeyStore() throws Exception {
+        if (System.getProperty("javax.net.ssl.keyStore") == null)
+            ConnectStormBenchmark.generateKeyStore();
+    }
+
+    /**
+     * @return a TLS socket, trusting the server's self-signed key, that has read INFO and sent CONNECT
+     */
+    static Socket connectTLS(Server server) throws Exception {
+        Socket s = open(server);
+        readUntil(s, "\r\n"); // INFO
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[]{new ConnectStormBenchmark.TrustAll()}, null);
+        SSLSocket ssl = (SSLSocket) client.getSocketFactory().createSocket(s, "localhost", server.getPort(), true);
+        ssl.setSoTimeout(10000);
+        ssl.startHandshake();
+        ssl.getOutputStream().write(("CONNECT " + OPTIONS + "\r\n").getBytes());
+        return ssl;
+    }
+
+    /**
+     * @return everything read until the text, or until the socket is closed
+     */
+    static String readUntil(Socket s, String text) throws IOException {
+        InputStream in = s.getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            read.write(buffer, 0, n);
+            if (read.toString().contains(text))
+                break;
+        }
+        return read.toString();
+    }
+
+    /**
+     * send the commands followed by a PING, and wait for the PONG, so the server has processed them
+     * @return everything read until the PONG
+     */
+    static String roundTrip(Socket s, String commands) throws IOException {
+        s.getOutputStream().write((commands + "PING\r\n").getBytes());
+        return readUntil(s, "PONG\r\n");
+    }
+}
@@ -0,0 +1,112 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.VirtualThreads;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static com.robaho.jnatsd.TestSockets.*;
+import static junit.framework.TestCase.*;
+
+public class TransportTest {
+    private static String publish(Socket pub, int count) throws Exception {
+        StringBuilder commands = new StringBuilder(), expected = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String payload = "message" + i;
+            commands.append("PUB foo ").append(payload.length()).append("\r\n").append(payload).append("\r\n");
+            expected.append("MSG foo 1 ").append(payload.length()).append("\r\n").append(payload).append("\r\n");
+        }
+        roundTrip(pub, commands.toString());
+        return expected.toString();
+    }
+
+    @Test
+    public void testNio() throws Exception {
+        Server server = newServer();
+        server.setTransport(Server.Transport.NIO);
+        server.setIOLoops(2);
+        server.start();
+        try (Socket sub = connect(server); Socket pub = connect(server); Socket other = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\n");
+            roundTrip(other, "SUB foo 1\r\n");
+            String expected = publish(pub, 100);
+            assertEquals(expected + "PONG\r\n", roundTrip(sub, ""));
+            assertEquals(expected + "PONG\r\n", roundTrip(other, ""));
+            // and after one of them leaves
+            roundTrip(other, "UNSUB 1\r\n");
+            assertEquals(publish(pub, 1) + "PONG\r\n", roundTrip(sub, ""));
+            assertEquals("PONG\r\n", roundTrip(other, ""));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNioBackpressure() throws Exception {
+        Server server = newServer();
+        server.setTransport(Server.Transport.NIO);
+        server.setIOLoops(1);
+        server.setSendBufferSize(8 * 1024);
+        server.setWriteDeadline(60000);
+        server.start();
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\n");
+            // more than the socket buffers hold, while the subscriber is not reading
+            int count = 4 * 1024;
+            char[] filler = new char[1000];
+            Arrays.fill(filler, 'x');
+            StringBuilder commands = new StringBuilder();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            OutputStream out = pub.getOutputStream();
+            for (int i = 0; i < count; i++) {
+                String payload = String.format("%08d", i) + new String(filler);
+                commands.append("PUB foo ").append(payload.length()).append("\r\n").append(payload).append("\r\n");
+                expected.write(("MSG foo 1 " + payload.length() + "\r\n" + payload + "\r\n").getBytes());
+                if (commands.length() > 64 * 1024) {
+                    out.write(commands.toString().getBytes());
+                    commands.setLength(0);
+                }
+            }
+            roundTrip(pub, commands.toString());
+
+            // the output the socket did not accept is held until it becomes writable
+            boolean pending = false;
+            for (Connection c : server.getConnections())
+                pending |= c.hasPendingOutput();
+            assertTrue(pending);
+
+            byte[] received = new byte[expected.size()];
+            new DataInputStream(sub.getInputStream()).readFully(received);
+            assertTrue(Arrays.equals(expected.toByteArray(), received));
+            assertEquals("PONG\r\n", roundTrip(sub, ""));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        Server server = newServer();
+        server.setTransport(Server.Transport.VIRTUAL);
+        // the writer waits out the flush delay, and writes the queued messages
+        server.setFlushPolicy("delay:2000");
+        server.setDeliveryQueue(16);
+        server.start();
+        try (Socket sub = connect(server); Socket pub = connect(server)) {
+            roundTrip(sub, "SUB foo 1\r\n");
+            // queued messages are not ordered with the subscriber's PONG, so read until the last
+            assertEquals(publish(pub, 100), readUntil(sub, "message99\r\n"));
+            // each connection's output is flushed by its own writer
+            for (Thread t : Thread.getAllStackTraces().keySet())
+                assertFalse(t.getName(), t.getName().startsWith("Flusher-"));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.robaho.jnatsd;
+
+import com.robaho.jnatsd.util.BufferPool;
+import com.robaho.jnatsd.util.ChannelOutputStream;
+import com.robaho.jnatsd.util.CharSeq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * measures writing small messages to a subscriber: encoding the MSG line a field at a time as
+ * before, against the pre-encoded subscription prefix and message header, both into an output
+ * stream over a discarding channel, and then Connection.sendMessage over a loopback socket
+ */
+public class WriteMessageBenchmark {
+    private static final long DURATION_MS = 2000;
+    private static final int[] PAYLOADS = {16, 128, 1024};
+    private static final byte[] MSG = "MSG ".getBytes();
+    private static final byte[] CR_LF = "\r\n".getBytes();
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    /**
+     * accepts and discards all bytes
+     */
+    private static class NullChannel implements GatheringByteChannel {
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++)
+                n += write(srcs[i]);
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Server server = new Server(0);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        Connection connection = new Connection(server, listener.accept().socket(), null);
+        Thread drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (client.read(buffer) >= 0)
+                    buffer.clear();
+            } catch (IOException ignored) {
+            }
+        }, "Drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        Subscription sub = new Subscription(connection, 12345, "orders.eu.item", "");
+        CharSeq subject = new CharSeq("orders.eu.item");
+        SubscriptionMatch.Recipient recipient = new SubscriptionMatch.Recipient(subject, sub);
+        OutputStream os = new ChannelOutputStream(new NullChannel(), 64 * 1024);
+        byte[] intToBytes = new byte[32];
+
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1; // first pass is warmup
+            for (int size : PAYLOADS) {
+                InMessage msg = InMessage.copyOf(connection, subject, new CharSeq("_INBOX.reply"), new byte[size], 0, size, 0, 0, pool);
+                byte[] data = new byte[size];
+                run("field at a time (before) " + size, report, () -> {
+                    os.write(MSG);
+                    msg.subject.write(os);
+                    os.write(' ');
+                    writeInt(os, intToBytes, sub.ssid);
+                    os.write(' ');
+                    msg.reply.write(os);
+                    os.write(' ');
+                    writeInt(os, intToBytes, data.length);
+                    os.write(CR_LF);
+                    os.write(data);
+                    os.write(CR_LF);
+                });
+                run("pre-encoded (after) " + size, report, () -> {
+                    os.write(recipient.prefix);
+                    os.write(msg.data, msg.headerOffset, msg.headerLength);
+                    os.write(msg.data, msg.offset, msg.length + 2);
+                });
+                run("Connection.sendMessage " + size, report, () -> connection.sendMessage(recipient, msg));
+                msg.release();
+            }
+        }
+        connection.close();
+        client.close();
+        listener.close();
+    }
+
+    private static void writeInt(OutputStream w, byte[] intToBytes, int i) throws IOException {
+        int offset = intToBytes.length - 1;
+        do {
+            intToBytes[offset--] = (byte) (i % 10 + '0');
+            i /= 10;
+        } while (i > 0);
+        w.write(intToBytes, offset + 1, intToBytes.length - 1 - offset);
+    }
+
+    private static void run(String name, boolean report, Op op) throws IOException {
+        long ops = 0;
+        long tid = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < DURATION_MS * 1000000) {
+            for (int i = 0; i < 1024; i++)
+                op.run();
+            ops += 1024;
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+        if (report) {
+            System.out.printf("%-32s %8.1f ns/op %10.0f msgs/sec %8.1f bytes/op%n", name, (double) elapsed / ops, ops / (elapsed / 1e9), (double) allocated / ops);
+        }
+    }
+}